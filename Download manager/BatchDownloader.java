@@ -0,0 +1,103 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Downloads a list of URLs in one process, sharing one HttpTransport, one global TokenBucket, one set of
+ * ConnectionSlots, one pool of FileWriter committers and one MetricsReporter between them.
+ *
+ * Every line of the list is "[PRIORITY] URL"; empty lines and lines starting with '#' are ignored. Downloads
+ * start by descending priority (0 by default) and in list order within the same priority. The number of
+ * connections bounds the ranges downloaded at once across the whole batch, and the number of active downloads.
+ */
+class BatchDownloader {
+    private final DownloadOptions options;
+    private final MetricsReporter metricsReporter;
+
+    /**
+     * @param metricsReporter reporter of the metrics of the downloads as JSON lines, or null
+     */
+    BatchDownloader(DownloadOptions options, MetricsReporter metricsReporter) {
+        this.options = options;
+        this.metricsReporter = metricsReporter;
+    }
+
+    static List<Entry> readList(BufferedReader reader) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            if (parts.length == 1) {
+                entries.add(new Entry(0, parts[0]));
+            } else if (parts.length == 2) {
+                try {
+                    entries.add(new Entry(Integer.parseInt(parts[0]), parts[1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid priority in line: " + line);
+                }
+            } else {
+                throw new IOException("Invalid line: " + line);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return true if all the downloads succeeded
+     */
+    boolean download(List<Entry> entries) {
+        List<Entry> ordered = new ArrayList<>(entries);
+        // A stable sort keeps the list order within the same priority
+        ordered.sort(Comparator.comparingInt((Entry entry) -> entry.priority).reversed());
+        int numberOfConnections = this.options.newConcurrencyController().getCeiling();
+        ConnectionSlots connectionSlots = new ConnectionSlots(numberOfConnections);
+        HttpTransport transport = new HttpTransport(this.options.preferHttp2);
+        TokenBucket globalBucket = this.options.newGlobalBucket();
+        ExecutorService downloads = this.options.newExecutor("download", numberOfConnections);
+        ExecutorService writers = this.options.newExecutor("committer", numberOfConnections);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (Entry entry : ordered) {
+            DownloadTask task = new DownloadTask(entry.url, entry.priority, this.options, transport, globalBucket, connectionSlots, writers, true, this.metricsReporter);
+            results.add(downloads.submit(() -> {
+                boolean success = task.download(task.getUrl() + ": ");
+                System.err.println(task.getUrl() + ": " + (success ? "Download succeeded" : "Download failed"));
+                return success;
+            }));
+        }
+        int succeeded = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (result.get()) {
+                    succeeded++;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // Counted as a failure
+            }
+        }
+        downloads.shutdown();
+        writers.shutdown();
+        transport.close();
+        System.err.println("HTTP: " + transport.getReport());
+        System.err.println("Batch finished: " + succeeded + " of " + ordered.size() + " downloads succeeded");
+        return succeeded == ordered.size();
+    }
+
+    static class Entry {
+        final int priority;
+        final String url;
+
+        Entry(int priority, String url) {
+            this.priority = priority;
+            this.url = url;
+        }
+    }
+}
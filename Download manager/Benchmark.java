@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Benchmarks of the hot components and of whole downloads, against an in-process RangeHttpServer:
+ *
+ * - tokenbucket: TokenBucket.take() from 1, 4 and 16 threads, on a bucket nested in a limited parent
+ * - metadata: DownloadableMetadata.getMissingRange(), addRange() and saveMetadataFile() on a 1 TB file, with the
+ *   ranges completed out of order
+ * - writer: FileWriter throughput with 4 writing threads, for every durability policy and output mode
+ * - download: end-to-end DownloadTask throughput with 1, 4 and 8 connections
+ *
+ * Every benchmark runs bench.warmup (default 2) unmeasured iterations, then bench.iterations (default 5) measured
+ * ones, and prints the median, minimum and maximum rate. The writer and download benchmarks create their files in
+ * the current directory and delete them; their size is bench.size bytes (default 256 MB). The server of the
+ * download benchmark takes the server.* settings of RangeHttpServer.
+ *
+ * Run with "java Benchmark [all|tokenbucket|metadata|writer|download]".
+ */
+class Benchmark {
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 2);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long SIZE = Long.getLong("bench.size", 256L * 1024 * 1024);
+    private static final long METADATA_FILE_SIZE = 1L << 40;
+    private static final int WRITE_SIZE = 256 * 1024;
+
+    /**
+     * One measured iteration.
+     */
+    private interface Iteration {
+        /**
+         * @return the number of operations (or bytes) done
+         */
+        long run() throws Exception;
+    }
+
+    private static void measure(String name, String unit, Iteration iteration) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            iteration.run();
+        }
+        double[] rates = new double[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            long operations = iteration.run();
+            rates[i] = operations / ((System.nanoTime() - start) / 1e9);
+        }
+        Arrays.sort(rates);
+        System.out.printf("%-40s %14.1f %s/s  (min %.1f, max %.1f)%n", name, rates[rates.length / 2], unit, rates[0], rates[rates.length - 1]);
+    }
+
+    /**
+     * Runs the iteration without the progress messages it prints to the standard error.
+     */
+    private static Iteration quietly(Iteration iteration) {
+        return () -> {
+            PrintStream err = System.err;
+            System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                return iteration.run();
+            } finally {
+                System.setErr(err);
+            }
+        };
+    }
+
+    private static void benchmarkTokenBucket() throws Exception {
+        for (int threads : new int[] { 1, 4, 16 }) {
+            measure("TokenBucket.take, " + threads + " threads", "ops", () -> {
+                // Limited high enough that the takers never wait, so only the cost of take() is measured
+                TokenBucket download = TokenBucket.forLimit(Long.MAX_VALUE / 4, null, TokenBucket.Mode.SOFT);
+                int takesPerThread = 2_000_000 / threads;
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                List<Future<?>> takers = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    takers.add(executor.submit(() -> {
+                        TokenBucket connection = download.child(null);
+                        for (int j = 0; j < takesPerThread; j++) {
+                            connection.take(4096);
+                        }
+                        connection.close();
+                        return null;
+                    }));
+                }
+                for (Future<?> taker : takers) {
+                    taker.get();
+                }
+                executor.shutdown();
+                return (long) takesPerThread * threads;
+            });
+        }
+    }
+
+    private static void benchmarkMetadata(RangeHttpServer server, HttpTransport transport) throws Exception {
+        String url = server.getSyntheticUrl(METADATA_FILE_SIZE);
+        long rangeSize = 256 * 1024;
+        int batch = 64;
+        measure("Metadata claim/add/save, 1 TB file", "ranges", () -> {
+            DownloadableMetadata metaData = new DownloadableMetadata(url, transport, false, DownloadTask.SMALL_FILE_SIZE);
+            metaData.setMaxRangeSize(1, rangeSize);
+            long ranges = 0;
+            try {
+                for (int round = 0; round < 1000; round++) {
+                    List<Range> claimed = new ArrayList<>();
+                    for (int i = 0; i < batch; i++) {
+                        claimed.add(metaData.getMissingRange());
+                    }
+                    // Connections finish their ranges in any order
+                    Collections.shuffle(claimed, ThreadLocalRandom.current());
+                    for (Range range : claimed) {
+                        metaData.addRange(range, 0);
+                    }
+                    metaData.saveMetadataFile();
+                    ranges += batch;
+                }
+            } finally {
+                metaData.delete();
+            }
+            return ranges;
+        });
+    }
+
+    private static void benchmarkWriter(RangeHttpServer server, HttpTransport transport) throws Exception {
+        String url = server.getSyntheticUrl(SIZE);
+        String[] policies = { "chunk", "group", "end" };
+        for (OutputFile.Mode outputMode : OutputFile.Mode.values()) {
+            for (String policy : policies) {
+                measure("FileWriter, " + policy + ", " + outputMode.name().toLowerCase(), "MB", quietly(() -> {
+                    writeFile(url, transport, DurabilityPolicy.parse(policy), outputMode);
+                    return SIZE / (1024 * 1024);
+                }));
+            }
+        }
+    }
+
+    /**
+     * Writes a whole file with FileWriter from 4 threads, each writing its own quarter, and waits for the commit.
+     */
+    private static void writeFile(String url, HttpTransport transport, DurabilityPolicy policy, OutputFile.Mode outputMode) throws Exception {
+        int threads = 4;
+        DownloadableMetadata metaData = new DownloadableMetadata(url, transport, false, DownloadTask.SMALL_FILE_SIZE);
+        RangeScheduler scheduler = new RangeScheduler(metaData, threads);
+        ConcurrencyController concurrency = ConcurrencyController.fixed(threads);
+        DownloadMetrics metrics = new DownloadMetrics(metaData, scheduler, concurrency, threads);
+        BufferPool bufferPool = new BufferPool(WRITE_SIZE, WRITE_SIZE, (long) WRITE_SIZE * threads * 2, threads);
+        FileWriter fileWriter = new FileWriter(metaData, policy, bufferPool, "", outputMode, metrics);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        Future<?> committer = executor.submit(fileWriter);
+        long share = (SIZE + threads - 1) / threads;
+        List<Future<?>> writers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            long start = i * share;
+            long end = Math.min(SIZE, start + share);
+            writers.add(executor.submit(() -> {
+                for (long offset = start; offset < end; offset += WRITE_SIZE) {
+                    int size = (int) Math.min(WRITE_SIZE, end - offset);
+                    ByteBuffer data = bufferPool.acquire(size);
+                    data.position(size);
+                    data.flip();
+                    fileWriter.write(new Chunk(data, offset, size));
+                    fileWriter.publish(new Range(offset, offset + size - 1), 0);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        fileWriter.finish();
+        committer.get();
+        executor.shutdown();
+        metaData.delete();
+        new File(metaData.getFilename()).delete();
+    }
+
+    private static void benchmarkDownload(RangeHttpServer server, HttpTransport transport) throws Exception {
+        String url = server.getSyntheticUrl(SIZE);
+        for (String connections : new String[] { "1", "4", "8" }) {
+            DownloadOptions options = DownloadOptions.fromSystemProperties(connections, null);
+            measure("Download, " + connections + " connections", "MB", quietly(() -> {
+                ExecutorService writers = Executors.newSingleThreadExecutor();
+                DownloadTask task = new DownloadTask(url, 0, options, transport, options.newGlobalBucket(),
+                        new ConnectionSlots(options.newConcurrencyController().getCeiling()), writers, false, null);
+                boolean success;
+                try {
+                    success = task.download("");
+                } finally {
+                    writers.shutdown();
+                    new File(url.substring(url.lastIndexOf('/') + 1)).delete();
+                }
+                if (!success) {
+                    throw new IOException("The download failed");
+                }
+                return SIZE / (1024 * 1024);
+            }));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String which = args.length > 0 ? args[0] : "all";
+        RangeHttpServer server = RangeHttpServer.fromSystemProperties(0, null);
+        server.start();
+        HttpTransport transport = new HttpTransport(false);
+        try {
+            if (which.equals("all") || which.equals("tokenbucket")) {
+                benchmarkTokenBucket();
+            }
+            if (which.equals("all") || which.equals("metadata")) {
+                benchmarkMetadata(server, transport);
+            }
+            if (which.equals("all") || which.equals("writer")) {
+                benchmarkWriter(server, transport);
+            }
+            if (which.equals("all") || which.equals("download")) {
+                benchmarkDownload(server, transport);
+            }
+        } finally {
+            transport.close();
+            server.stop();
+        }
+    }
+}
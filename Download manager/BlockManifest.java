@@ -0,0 +1,289 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * The block checksums of a file, served next to it (URL + ".blocks") so that an older copy of the file can be
+ * updated by downloading only the blocks that changed (see DeltaUpdater).
+ *
+ * The file is cut into blocks of blockSize bytes, the last one possibly shorter. Every block has a weak checksum,
+ * which can be rolled over a file one byte at a time (the one of rsync), a strong checksum (the first
+ * STRONG_CHECKSUM_SIZE bytes of its SHA-256), and its CRC32C, which goes into the metadata when the block is
+ * reused. The manifest is a text file:
+ *
+ *   IDM-BLOCKS 1
+ *   SIZE BLOCK-SIZE
+ *   WEAK STRONG CRC32C     (one line per block, in hex)
+ *
+ * Run "java BlockManifest FILE [BLOCK-SIZE]" to write the manifest of a file to FILE.blocks.
+ */
+class BlockManifest {
+    static final String SUFFIX = ".blocks";
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    static final int STRONG_CHECKSUM_SIZE = 16;
+    private static final String HEADER = "IDM-BLOCKS 1";
+    // Bits of the weak checksum filter per block, so at most about 3% of the windows that match no block pass it
+    private static final int WEAK_FILTER_BITS_PER_BLOCK = 32;
+    private static final int MAX_WEAK_FILTER_BLOCKS = 1 << 22;
+
+    private final long size;
+    private final int blockSize;
+    private final int[] weak;
+    private final byte[][] strong;
+    private final int[] crc32c;
+    // Weak checksum -> the full-size blocks that have it
+    private final Map<Integer, int[]> blocksByWeak = new HashMap<>();
+    // A bit per hash of the weak checksums in blocksByWeak, checked first so that the scan of an older copy, which
+    // looks up every window it rolls over, boxes the weak checksum only for the windows that may match
+    private final long[] weakFilter;
+    private final int weakFilterShift;
+
+    private BlockManifest(long size, int blockSize, int[] weak, byte[][] strong, int[] crc32c) {
+        this.size = size;
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+        this.crc32c = crc32c;
+        // A power of two, at most 16 MB
+        int filterBlocks = Integer.highestOneBit(Math.max(2, Math.min(weak.length, MAX_WEAK_FILTER_BLOCKS)));
+        int filterBits = filterBlocks * WEAK_FILTER_BITS_PER_BLOCK;
+        this.weakFilter = new long[filterBits / 64];
+        this.weakFilterShift = 32 - Integer.numberOfTrailingZeros(filterBits);
+        Map<Integer, List<Integer>> blocks = new HashMap<>();
+        for (int block = 0; block < weak.length; block++) {
+            if (getLength(block) == blockSize) {
+                blocks.computeIfAbsent(weak[block], key -> new ArrayList<>()).add(block);
+                int bit = weakFilterBit(weak[block]);
+                this.weakFilter[bit >>> 6] |= 1L << bit;
+            }
+        }
+        for (Map.Entry<Integer, List<Integer>> entry : blocks.entrySet()) {
+            this.blocksByWeak.put(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    long getSize() {
+        return this.size;
+    }
+
+    int getBlockSize() {
+        return this.blockSize;
+    }
+
+    int getNumberOfBlocks() {
+        return this.weak.length;
+    }
+
+    long getStart(int block) {
+        return (long) block * this.blockSize;
+    }
+
+    int getLength(int block) {
+        return (int) Math.min(this.blockSize, this.size - getStart(block));
+    }
+
+    int getCrc32c(int block) {
+        return this.crc32c[block];
+    }
+
+    /**
+     * @return the full-size blocks with the given weak checksum, or null if there is none
+     */
+    int[] getBlocksWithWeak(int weak) {
+        int bit = weakFilterBit(weak);
+        if ((this.weakFilter[bit >>> 6] & 1L << bit) == 0) {
+            return null;
+        }
+        return this.blocksByWeak.get(weak);
+    }
+
+    /**
+     * @return the bit of the weak checksum in weakFilter, from the high bits of its Fibonacci hash
+     */
+    private int weakFilterBit(int weak) {
+        return (weak * 0x9E3779B9) >>> this.weakFilterShift;
+    }
+
+    boolean hasStrong(int block, byte[] strong) {
+        return Arrays.equals(this.strong[block], strong);
+    }
+
+    /**
+     * The weak checksum of rsync: a is the sum of the bytes and b the sum of the running sums of a, both modulo
+     * 2^16, so that a window is rolled one byte forward with roll().
+     *
+     * @return b << 16 | a
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = offset; i < offset + length; i++) {
+            a += data[i] & 0xff;
+            b += a;
+        }
+        return (b & 0xffff) << 16 | (a & 0xffff);
+    }
+
+    /**
+     * @param weak the weak checksum of a window of the given length
+     * @param out the first byte of the window
+     * @param in the byte that follows the window
+     * @return the weak checksum of the window one byte forward
+     */
+    static int roll(int weak, int length, byte out, byte in) {
+        int a = (weak - (out & 0xff) + (in & 0xff)) & 0xffff;
+        int b = ((weak >>> 16) - length * (out & 0xff) + a) & 0xffff;
+        return b << 16 | a;
+    }
+
+    static MessageDigest newStrongDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] strongChecksum(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.reset();
+        digest.update(data, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_CHECKSUM_SIZE);
+    }
+
+    /**
+     * Reads a manifest, e.g. the body of its HTTP response.
+     */
+    static BlockManifest read(InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.US_ASCII));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not a block manifest");
+            }
+            String[] sizes = readFields(reader, 2);
+            long size = Long.parseLong(sizes[0]);
+            int blockSize = Integer.parseInt(sizes[1]);
+            if (size < 0 || blockSize <= 0 || (size + blockSize - 1) / blockSize > Integer.MAX_VALUE) {
+                throw new IOException("Invalid block manifest size");
+            }
+            int blocks = (int) ((size + blockSize - 1) / blockSize);
+            int[] weak = new int[blocks];
+            byte[][] strong = new byte[blocks][];
+            int[] crc32c = new int[blocks];
+            for (int block = 0; block < blocks; block++) {
+                String[] fields = readFields(reader, 3);
+                weak[block] = Integer.parseUnsignedInt(fields[0], 16);
+                strong[block] = parseHex(fields[1]);
+                crc32c[block] = Integer.parseUnsignedInt(fields[2], 16);
+            }
+            return new BlockManifest(size, blockSize, weak, strong, crc32c);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupted block manifest", e);
+        }
+    }
+
+    private static String[] readFields(BufferedReader reader, int count) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("Truncated block manifest");
+        }
+        String[] fields = line.trim().split("\\s+");
+        if (fields.length != count) {
+            throw new IOException("Corrupted block manifest");
+        }
+        return fields;
+    }
+
+    /**
+     * Computes the manifest of a local file, reading its blocks in parallel.
+     */
+    static BlockManifest compute(Path path, int blockSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if ((size + blockSize - 1) / blockSize > Integer.MAX_VALUE) {
+                throw new IOException("The file has too many blocks, use a larger block size");
+            }
+            int blocks = (int) ((size + blockSize - 1) / blockSize);
+            int[] weak = new int[blocks];
+            byte[][] strong = new byte[blocks][];
+            int[] crc32c = new int[blocks];
+            try {
+                IntStream.range(0, blocks).parallel().forEach(block -> {
+                    long start = (long) block * blockSize;
+                    byte[] data = new byte[(int) Math.min(blockSize, size - start)];
+                    try {
+                        ByteBuffer buffer = ByteBuffer.wrap(data);
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, start + buffer.position()) < 0) {
+                                throw new IOException("The file is shorter than its size");
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    weak[block] = weakChecksum(data, 0, data.length);
+                    strong[block] = strongChecksum(newStrongDigest(), data, 0, data.length);
+                    crc32c[block] = Crc32c.checksum(data, 0, data.length);
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return new BlockManifest(size, blockSize, weak, strong, crc32c);
+        }
+    }
+
+    void write(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII)) {
+            writer.write(HEADER + "\n");
+            writer.write(this.size + " " + this.blockSize + "\n");
+            for (int block = 0; block < this.weak.length; block++) {
+                writer.write(String.format("%08x %s %08x\n", this.weak[block], toHex(this.strong[block]), this.crc32c[block]));
+            }
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : data) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex.length() != 2 * STRONG_CHECKSUM_SIZE) {
+            throw new NumberFormatException("Invalid strong checksum " + hex);
+        }
+        byte[] data = new byte[STRONG_CHECKSUM_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return data;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage:\n\tjava BlockManifest FILE [BLOCK-SIZE]");
+            System.exit(1);
+        }
+        int blockSize = args.length == 2 ? Integer.parseInt(args[1]) : DEFAULT_BLOCK_SIZE;
+        compute(Paths.get(args[0]), blockSize).write(Paths.get(args[0] + SUFFIX));
+    }
+}
@@ -0,0 +1,76 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A pool of recycled direct buffers shared by the HTTPRangeGetters.
+ *
+ * Buffers come in power-of-two sizes from minBufferSize up to getMaxBufferSize(), each size with its own free
+ * list. The total memory of the buffers in use is bounded by a byte budget: acquire() blocks while the whole
+ * budget is handed out. The largest size is capped so every connection can hold one buffer of it at once.
+ */
+class BufferPool {
+    static final long DEFAULT_BYTE_BUDGET = 16 * 1024 * 1024;
+
+    private final int minBufferSize;
+    private final int maxBufferSize;
+    // One permit per minBufferSize bytes
+    private final Semaphore availableBytes;
+    // Free buffers of minBufferSize << i bytes
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeBuffers;
+
+    /**
+     * @param minBufferSize size of the smallest buffer in bytes, rounded up to a power of two
+     * @param maxBufferSize size of the largest buffer asked for in bytes
+     * @param byteBudget maximal number of bytes held by buffers at once, rounded up to at least one smallest buffer
+     *                   per connection
+     * @param numberOfConnections number of connections that hold a buffer at once
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BufferPool(int minBufferSize, int maxBufferSize, long byteBudget, int numberOfConnections) {
+        minBufferSize = ceilToPowerOfTwo(minBufferSize);
+        long permits = Math.max(numberOfConnections, Math.min(byteBudget / minBufferSize, Integer.MAX_VALUE));
+        long perConnection = Math.max(permits / Math.max(numberOfConnections, 1), 1) * minBufferSize;
+        this.minBufferSize = minBufferSize;
+        this.maxBufferSize = (int) Math.max(minBufferSize, Long.highestOneBit(Math.min(perConnection, ceilToPowerOfTwo(maxBufferSize))));
+        this.availableBytes = new Semaphore((int) permits);
+        this.freeBuffers = new ConcurrentLinkedQueue[Integer.numberOfTrailingZeros(this.maxBufferSize / minBufferSize) + 1];
+        for (int i = 0; i < this.freeBuffers.length; i++) {
+            this.freeBuffers[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Takes a cleared buffer of at least size bytes (at most getMaxBufferSize()) from the pool, blocking until the
+     * budget allows it. The limit of the buffer is set to size.
+     */
+    ByteBuffer acquire(int size) throws InterruptedException {
+        int bufferSize = Math.max(this.minBufferSize, Math.min(ceilToPowerOfTwo(size), this.maxBufferSize));
+        this.availableBytes.acquire(bufferSize / this.minBufferSize);
+        ByteBuffer buffer = this.freeBuffers[sizeClass(bufferSize)].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        buffer.limit(Math.min(size, bufferSize));
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        this.freeBuffers[sizeClass(buffer.capacity())].offer(buffer);
+        this.availableBytes.release(buffer.capacity() / this.minBufferSize);
+    }
+
+    int getMaxBufferSize() {
+        return this.maxBufferSize;
+    }
+
+    private int sizeClass(int bufferSize) {
+        return Integer.numberOfTrailingZeros(bufferSize / this.minBufferSize);
+    }
+
+    private static int ceilToPowerOfTwo(int size) {
+        int highest = Integer.highestOneBit(Math.max(size, 1));
+        return highest == size ? size : highest << 1;
+    }
+}
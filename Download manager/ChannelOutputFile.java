@@ -0,0 +1,39 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An OutputFile written with positional FileChannel writes, which do not share a file pointer.
+ */
+class ChannelOutputFile implements OutputFile {
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    ChannelOutputFile(File file, long fullSize) throws IOException {
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = this.randomAccessFile.getChannel();
+        if (this.randomAccessFile.length() != fullSize) {
+            this.randomAccessFile.setLength(fullSize);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer data, long offset) throws IOException {
+        long position = offset;
+        while (data.hasRemaining()) {
+            position += this.channel.write(data, position);
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        this.channel.force(true);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.randomAccessFile.close();
+    }
+}
@@ -0,0 +1,204 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+/**
+ * The CRC32C checksums of the downloaded ranges of a file, as disjoint records of (start, end, checksum).
+ *
+ * Adjacent records are merged, combining their checksums with Crc32c.combine(), as long as the merged record is
+ * at most MAX_RECORD_SIZE bytes long. The cap is the granularity of verification: a corrupted byte costs the
+ * download of its record again, not of the whole run around it.
+ */
+class ChecksumIndex {
+    static final long MAX_RECORD_SIZE = 8 * 1024 * 1024;
+    private static final int VERIFY_BUFFER_SIZE = 1024 * 1024;
+
+    // Start -> record
+    private final TreeMap<Long, Record> records = new TreeMap<>();
+    private long coveredBytes;
+
+    /**
+     * Adds the checksum of [start, end], which must not overlap the records already in the index.
+     */
+    synchronized void add(long start, long end, int checksum) {
+        Record record = new Record(start, end, checksum);
+        Map.Entry<Long, Record> before = this.records.floorEntry(start - 1);
+        if (before != null && before.getValue().end == start - 1 && before.getValue().getLength() + record.getLength() <= MAX_RECORD_SIZE) {
+            this.records.remove(before.getKey());
+            record = before.getValue().append(record);
+        }
+        Record after = this.records.get(end + 1);
+        if (after != null && record.getLength() + after.getLength() <= MAX_RECORD_SIZE) {
+            this.records.remove(end + 1);
+            record = record.append(after);
+        }
+        this.records.put(record.start, record);
+        this.coveredBytes += end - start + 1;
+    }
+
+    /**
+     * Removes the records that overlap [start, end].
+     */
+    synchronized void remove(long start, long end) {
+        Long first = this.records.floorKey(start);
+        if (first == null || this.records.get(first).end < start) {
+            first = start;
+        }
+        List<Long> starts = new ArrayList<>(this.records.subMap(first, true, end, true).keySet());
+        for (Long recordStart : starts) {
+            this.coveredBytes -= this.records.remove(recordStart).getLength();
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return this.records.isEmpty();
+    }
+
+    synchronized List<Record> getRecords() {
+        return new ArrayList<>(this.records.values());
+    }
+
+    /**
+     * @return the parts of [start, end] that no record covers
+     */
+    synchronized List<Range> getGaps(long start, long end) {
+        List<Range> gaps = new ArrayList<>();
+        long position = start;
+        Long first = this.records.floorKey(start);
+        for (Record record : this.records.tailMap(first != null ? first : start, true).values()) {
+            if (record.start > end) {
+                break;
+            }
+            if (record.start > position) {
+                gaps.add(new Range(position, record.start - 1));
+            }
+            position = Math.max(position, record.end + 1);
+        }
+        if (position <= end) {
+            gaps.add(new Range(position, end));
+        }
+        return gaps;
+    }
+
+    /**
+     * Assembles the checksum of the whole file from the records, in parallel.
+     *
+     * @return the CRC32C of the file, or null if the records do not cover exactly size bytes
+     */
+    synchronized Integer getFileChecksum(long size) {
+        if (this.coveredBytes != size) {
+            return null;
+        }
+        Record whole = this.records.values().parallelStream().reduce(Record.EMPTY, Record::append);
+        return whole.checksum;
+    }
+
+    /**
+     * Reads the data of every record from the file, in parallel, and removes the records that do not match it.
+     *
+     * @return the ranges of the removed records
+     */
+    List<Range> verify(FileChannel channel) {
+        List<Record> corrupted = getRecords().parallelStream()
+                .filter(record -> !record.matches(channel))
+                .collect(Collectors.toList());
+        List<Range> ranges = new ArrayList<>();
+        for (Record record : corrupted) {
+            remove(record.start, record.end);
+            ranges.add(new Range(record.start, record.end));
+        }
+        return ranges;
+    }
+
+    synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(this.records.size());
+        for (Record record : this.records.values()) {
+            out.writeLong(record.start);
+            out.writeLong(record.end);
+            out.writeInt(record.checksum);
+        }
+    }
+
+    static ChecksumIndex readFrom(DataInput in, long size) throws IOException {
+        int numOfRecords = in.readInt();
+        if (numOfRecords < 0) {
+            throw new IOException("Corrupted checksum index");
+        }
+        ChecksumIndex index = new ChecksumIndex();
+        for (int i = 0; i < numOfRecords; i++) {
+            long start = in.readLong();
+            long end = in.readLong();
+            int checksum = in.readInt();
+            if (start < 0 || end < start || end >= size) {
+                throw new IOException("Corrupted checksum index");
+            }
+            index.remove(start, end);
+            index.add(start, end, checksum);
+        }
+        return index;
+    }
+
+    /**
+     * The checksum of one range of the file.
+     */
+    static class Record {
+        static final Record EMPTY = new Record(0, -1, 0);
+
+        final long start;
+        final long end;
+        final int checksum;
+
+        Record(long start, long end, int checksum) {
+            this.start = start;
+            this.end = end;
+            this.checksum = checksum;
+        }
+
+        long getLength() {
+            return this.end - this.start + 1;
+        }
+
+        /**
+         * @return the record of this range followed by the given one
+         */
+        Record append(Record next) {
+            if (this.getLength() == 0) {
+                return next;
+            }
+            if (next.getLength() == 0) {
+                return this;
+            }
+            return new Record(this.start, this.end + next.getLength(), Crc32c.combine(this.checksum, next.checksum, next.getLength()));
+        }
+
+        private boolean matches(FileChannel channel) {
+            CRC32C crc = new CRC32C();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(VERIFY_BUFFER_SIZE, getLength()));
+            long position = this.start;
+            try {
+                while (position <= this.end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), this.end - position + 1));
+                    int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        return false;
+                    }
+                    buffer.flip();
+                    crc.update(buffer);
+                    position += read;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+            return (int) crc.getValue() == this.checksum;
+        }
+    }
+}
@@ -1,20 +1,23 @@
+import java.nio.ByteBuffer;
+
 /**
  * A chunk of data file
  *
- * Contains an offset, bytes of data, and size
+ * Contains an offset, a buffer of data taken from the BufferPool, and size.
+ * The buffer is not copied: whoever consumes the chunk must release the buffer back to the pool.
  */
 class Chunk {
-    private byte[] data;
+    private ByteBuffer data;
     private long offset;
     private int size_in_bytes;
 
-    Chunk(byte[] data, long offset, int size_in_bytes) {
-        this.data = data != null ? data.clone() : null;
+    Chunk(ByteBuffer data, long offset, int size_in_bytes) {
+        this.data = data;
         this.offset = offset;
         this.size_in_bytes = size_in_bytes;
     }
 
-    byte[] getData() {
+    ByteBuffer getData() {
         return data;
     }
 
@@ -0,0 +1,190 @@
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides how many of the RangeWorkers of a download may use a connection at the same time.
+ *
+ * In fixed mode all the workers run. In auto mode the controller starts with a few connections and samples the
+ * aggregate throughput every SAMPLE_PERIOD milliseconds, AIMD style:
+ *
+ * - throughput grew by at least GAIN_THRESHOLD: add a connection, up to the ceiling
+ * - a range failed since the last sample: halve the number of connections
+ * - throughput stayed flat after adding a connection: take it back, and probe again after PROBE_INTERVAL samples
+ *
+ * The workers above the limit wait on a ReentrantLock rather than a monitor, since a virtual thread that waits on
+ * a monitor holds its carrier thread before Java 24, and with a high ceiling most of the workers wait here.
+ */
+class ConcurrencyController implements Runnable {
+    static final int DEFAULT_AUTO_CEILING = 16;
+    static final int AUTO_INITIAL_CONNECTIONS = 2;
+    static final long SAMPLE_PERIOD = 1000;
+    static final double GAIN_THRESHOLD = 0.05;
+    static final int PROBE_INTERVAL = 5;
+
+    private final int ceiling;
+    private final boolean adaptive;
+    private RangeScheduler scheduler;
+    private int limit;
+    private boolean isTerminated;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when the limit changes or the controller terminates
+    private final Condition changed = this.lock.newCondition();
+
+    private ConcurrencyController(int initial, int ceiling, boolean adaptive) {
+        this.limit = initial;
+        this.ceiling = ceiling;
+        this.adaptive = adaptive;
+    }
+
+    static ConcurrencyController fixed(int numberOfConnections) {
+        return new ConcurrencyController(numberOfConnections, numberOfConnections, false);
+    }
+
+    static ConcurrencyController adaptive(int ceiling) {
+        return new ConcurrencyController(Math.min(AUTO_INITIAL_CONNECTIONS, ceiling), ceiling, true);
+    }
+
+    /**
+     * Parses the MAX-CONCURRENT-CONNECTIONS argument: a number, "auto" or "auto:CEILING".
+     */
+    static ConcurrencyController parse(String spec) {
+        if (spec.equals("auto")) {
+            return adaptive(DEFAULT_AUTO_CEILING);
+        }
+        if (spec.startsWith("auto:")) {
+            return adaptive(positive(Integer.parseInt(spec.substring("auto:".length()))));
+        }
+        return fixed(positive(Integer.parseInt(spec)));
+    }
+
+    private static int positive(int numberOfConnections) {
+        if (numberOfConnections < 1) {
+            throw new IllegalArgumentException("The number of connections must be positive");
+        }
+        return numberOfConnections;
+    }
+
+    /**
+     * @return the maximal number of connections, which is the number of workers to start
+     */
+    int getCeiling() {
+        return this.ceiling;
+    }
+
+    boolean isAdaptive() {
+        return this.adaptive;
+    }
+
+    int getLimit() {
+        this.lock.lock();
+        try {
+            return this.limit;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the scheduler whose delivered bytes and failures are sampled.
+     */
+    void setScheduler(RangeScheduler scheduler) {
+        this.lock.lock();
+        try {
+            this.scheduler = scheduler;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks the worker with the given index while it is above the current limit.
+     */
+    void awaitSlot(int workerIndex) throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (workerIndex >= this.limit && !this.isTerminated) {
+                this.changed.await();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Releases all the waiting workers, used once the scheduler has nothing left to hand out.
+     */
+    void terminate() {
+        this.lock.lock();
+        try {
+            this.isTerminated = true;
+            this.changed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    boolean terminated() {
+        this.lock.lock();
+        try {
+            return this.isTerminated;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!this.adaptive) {
+            return;
+        }
+        long lastBytes = this.scheduler.getDeliveredBytes();
+        int lastFailures = this.scheduler.getFailures();
+        double lastThroughput = 0;
+        boolean lastWasIncrease = false;
+        int samplesUntilProbe = 0;
+        while (!terminated()) {
+            try {
+                Thread.sleep(SAMPLE_PERIOD);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long bytes = this.scheduler.getDeliveredBytes();
+            int failures = this.scheduler.getFailures();
+            double throughput = (bytes - lastBytes) * 1000.0 / SAMPLE_PERIOD;
+            int newLimit = getLimit();
+            if (failures > lastFailures) {
+                newLimit = Math.max(1, newLimit / 2);
+                lastWasIncrease = false;
+                samplesUntilProbe = PROBE_INTERVAL;
+            } else if (throughput > lastThroughput * (1 + GAIN_THRESHOLD) && samplesUntilProbe == 0) {
+                lastWasIncrease = newLimit < this.ceiling;
+                newLimit = Math.min(this.ceiling, newLimit + 1);
+            } else if (lastWasIncrease) {
+                // The last connection added nothing, the server caps the download elsewhere
+                newLimit = Math.max(1, newLimit - 1);
+                lastWasIncrease = false;
+                samplesUntilProbe = PROBE_INTERVAL;
+            } else if (samplesUntilProbe > 0 && --samplesUntilProbe == 0 && newLimit < this.ceiling) {
+                lastWasIncrease = true;
+                newLimit++;
+            }
+            setLimit(newLimit);
+            lastBytes = bytes;
+            lastFailures = failures;
+            lastThroughput = throughput;
+        }
+    }
+
+    private void setLimit(int newLimit) {
+        this.lock.lock();
+        try {
+            if (newLimit != this.limit && !this.isTerminated) {
+                this.limit = newLimit;
+                System.err.println("Using " + newLimit + " connections");
+                this.changed.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the number of ranges downloaded at the same time across all the downloads of a batch.
+ *
+ * A worker holds a slot while it downloads one range. Waiting workers get the free slots by priority, and in
+ * arrival order within the same priority, so downloads of equal priority take turns range by range.
+ *
+ * The waiters wait on a ReentrantLock rather than a monitor, since every worker of the batch may wait here: a
+ * virtual thread that waits on a monitor holds its carrier thread before Java 24.
+ */
+class ConnectionSlots {
+    private final int capacity;
+    private int used;
+    private long arrivals;
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition granted = this.lock.newCondition();
+
+    ConnectionSlots(int capacity) {
+        this.capacity = capacity;
+    }
+
+    int getCapacity() {
+        return this.capacity;
+    }
+
+    void acquire(int priority) throws InterruptedException {
+        this.lock.lock();
+        try {
+            if (this.used < this.capacity && this.waiters.isEmpty()) {
+                this.used++;
+                return;
+            }
+            Waiter waiter = new Waiter(priority, this.arrivals++);
+            this.waiters.add(waiter);
+            try {
+                while (!waiter.granted) {
+                    this.granted.await();
+                }
+            } catch (InterruptedException e) {
+                if (waiter.granted) {
+                    release();
+                } else {
+                    this.waiters.remove(waiter);
+                }
+                throw e;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void release() {
+        this.lock.lock();
+        try {
+            Waiter next = this.waiters.poll();
+            if (next != null) {
+                // The slot moves to the next waiter as is
+                next.granted = true;
+                this.granted.signalAll();
+            } else {
+                this.used--;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        private final int priority;
+        private final long arrival;
+        private boolean granted;
+
+        Waiter(int priority, long arrival) {
+            this.priority = priority;
+            this.arrival = arrival;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (this.priority != other.priority) {
+                return Integer.compare(other.priority, this.priority);
+            }
+            return Long.compare(this.arrival, other.arrival);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.zip.CRC32C;
+
+/**
+ * Combines CRC32C checksums of consecutive pieces of data, so the checksum of a range (or of the whole file) is
+ * assembled from the checksums of its parts without reading the data again.
+ *
+ * combine() multiplies the first checksum by x^(8 * length of the second piece) modulo the Castagnoli polynomial,
+ * the same way zlib's crc32_combine() does for CRC-32; it costs O(log length), independent of the data.
+ */
+final class Crc32c {
+    // The Castagnoli polynomial, bit-reversed
+    private static final int POLYNOMIAL = 0x82F63B78;
+    // X2N[k] = x^(2^k) modulo the polynomial, up to x^(8 * 2^63). Unlike for zlib's CRC-32 polynomial, x^(2^32) is
+    // not x modulo this one, so the table cannot wrap around after 32 entries
+    private static final int[] X2N = new int[3 + 64];
+
+    static {
+        int p = 1 << 30; // x^1
+        X2N[0] = p;
+        for (int n = 1; n < X2N.length; n++) {
+            X2N[n] = p = multiplyModP(p, p);
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * @param crc1 checksum of the first piece
+     * @param crc2 checksum of the second piece
+     * @param length2 length of the second piece in bytes
+     * @return the checksum of the first piece followed by the second
+     */
+    static int combine(int crc1, int crc2, long length2) {
+        return multiplyModP(xPow8n(length2), crc1) ^ crc2;
+    }
+
+    static int checksum(byte[] data, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static int multiplyModP(int a, int b) {
+        int m = 1 << 31;
+        int p = 0;
+        while (true) {
+            if ((a & m) != 0) {
+                p ^= b;
+                if ((a & (m - 1)) == 0) {
+                    break;
+                }
+            }
+            m >>>= 1;
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLYNOMIAL : b >>> 1;
+        }
+        return p;
+    }
+
+    /**
+     * @return x^(8 * n) modulo the polynomial
+     */
+    private static int xPow8n(long n) {
+        int p = 1 << 31; // x^0
+        int k = 3;
+        while (n != 0) {
+            if ((n & 1) != 0) {
+                p = multiplyModP(X2N[k], p);
+            }
+            n >>>= 1;
+            k++;
+        }
+        return p;
+    }
+}
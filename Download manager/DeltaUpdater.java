@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * Seeds a new download with the blocks of an older copy of the file that did not change, so only the changed
+ * blocks are downloaded, the way zsync does.
+ *
+ * The BlockManifest of the new file is fetched from next to it. The older copy is scanned for its blocks with the
+ * rolling weak checksum, in segments read in parallel: a window whose weak checksum is in the manifest is checked
+ * against the strong checksum, and a match moves the window a whole block forward. The blocks found are copied
+ * from the older copy into the new file with FileChannel.transferTo(), without passing through the heap, forced
+ * to the disk, and added to the metadata with their CRC32C from the manifest. The RangeScheduler then hands out
+ * only the rest, as for a resumed download.
+ */
+class DeltaUpdater {
+    // Bytes of the older copy read at a time by every scanning thread
+    private static final int SCAN_BUFFER_SIZE = 4 * 1024 * 1024;
+    // Segments per core, so a segment without matches does not hold the scan back
+    private static final int SEGMENTS_PER_CORE = 4;
+
+    private final BlockManifest manifest;
+
+    DeltaUpdater(BlockManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Fetches the manifest of the file at url from url + BlockManifest.SUFFIX.
+     */
+    static DeltaUpdater forUrl(HttpTransport transport, String url) throws IOException, InterruptedException {
+        try (InputStream body = transport.get(url + BlockManifest.SUFFIX)) {
+            return new DeltaUpdater(BlockManifest.read(body));
+        }
+    }
+
+    /**
+     * Copies the blocks of the older copy that the new file still has into the new file, for the ranges of the
+     * file that were not downloaded, and adds them to the metadata.
+     *
+     * @param seed the older copy of the file
+     * @return the number of bytes copied
+     */
+    long seed(Path seed, DownloadableMetadata metaData, Path target) throws IOException {
+        if (this.manifest.getSize() != metaData.getFullSize()) {
+            throw new IOException("The block manifest is of a file of " + this.manifest.getSize() + " bytes, not " + metaData.getFullSize());
+        }
+        try (FileChannel seedChannel = FileChannel.open(seed, StandardOpenOption.READ);
+             FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long[] found = findBlocks(seedChannel);
+            RangeIndex parts = metaData.getDownladableParts();
+            // Consecutive blocks found consecutively in the older copy are copied and recorded as one range
+            long copied = 0;
+            int runStart = -1;
+            int runChecksum = 0;
+            for (int block = 0; block < found.length; block++) {
+                boolean reusable = found[block] >= 0
+                        && parts.isAll(this.manifest.getStart(block), getEnd(block), DownloadableMetadata.CHUNK_WAS_NOT_DOWNLOADED);
+                if (runStart >= 0 && !(reusable && found[block] == found[block - 1] + this.manifest.getBlockSize()
+                        && getEnd(block) - this.manifest.getStart(runStart) < ChecksumIndex.MAX_RECORD_SIZE)) {
+                    copied += copy(seedChannel, targetChannel, found[runStart], runStart, block - 1, runChecksum, metaData);
+                    runStart = -1;
+                }
+                if (!reusable) {
+                    continue;
+                }
+                if (runStart < 0) {
+                    runStart = block;
+                    runChecksum = this.manifest.getCrc32c(block);
+                } else {
+                    runChecksum = Crc32c.combine(runChecksum, this.manifest.getCrc32c(block), this.manifest.getLength(block));
+                }
+            }
+            if (runStart >= 0) {
+                copied += copy(seedChannel, targetChannel, found[runStart], runStart, found.length - 1, runChecksum, metaData);
+            }
+            metaData.saveMetadataFile();
+            return copied;
+        }
+    }
+
+    /**
+     * Copies the blocks [firstBlock, lastBlock] from the given offset of the older copy, and adds them to the metadata
+     * once they are on disk.
+     */
+    private long copy(FileChannel seed, FileChannel target, long seedOffset, int firstBlock, int lastBlock, int checksum,
+                      DownloadableMetadata metaData) throws IOException {
+        long start = this.manifest.getStart(firstBlock);
+        long length = getEnd(lastBlock) - start + 1;
+        target.position(start);
+        long transferred = 0;
+        while (transferred < length) {
+            long size = seed.transferTo(seedOffset + transferred, length - transferred, target);
+            if (size <= 0) {
+                throw new IOException("The older copy is shorter than its size");
+            }
+            transferred += size;
+        }
+        target.force(false);
+        metaData.addRange(new Range(start, start + length - 1), checksum);
+        return length;
+    }
+
+    /**
+     * @return the last byte of the block
+     */
+    private long getEnd(int block) {
+        return this.manifest.getStart(block) + this.manifest.getLength(block) - 1;
+    }
+
+    /**
+     * Scans the older copy for the blocks of the manifest, in parallel.
+     *
+     * @return for every block of the manifest, its offset in the older copy, or -1 if it was not found
+     */
+    private long[] findBlocks(FileChannel seed) throws IOException {
+        AtomicLongArray found = new AtomicLongArray(this.manifest.getNumberOfBlocks());
+        for (int block = 0; block < found.length(); block++) {
+            found.set(block, -1);
+        }
+        long seedSize = seed.size();
+        int segments = Runtime.getRuntime().availableProcessors() * SEGMENTS_PER_CORE;
+        long segmentSize = Math.max((seedSize + segments - 1) / segments, 16L * this.manifest.getBlockSize());
+        try {
+            IntStream.range(0, (int) ((seedSize + segmentSize - 1) / segmentSize)).parallel().forEach(segment -> {
+                try {
+                    scan(seed, seedSize, segment * segmentSize, Math.min(seedSize, (segment + 1) * segmentSize), found);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        long[] offsets = new long[found.length()];
+        for (int block = 0; block < offsets.length; block++) {
+            offsets[block] = found.get(block);
+        }
+        return offsets;
+    }
+
+    /**
+     * Rolls a window of one block over the older copy, from every offset in [from, to) at which a whole block fits.
+     * The window reads past to, so the blocks that cross into the next segment are found too.
+     */
+    private void scan(FileChannel seed, long seedSize, long from, long to, AtomicLongArray found) throws IOException {
+        int blockSize = this.manifest.getBlockSize();
+        long last = Math.min(to - 1, seedSize - blockSize);
+        if (from > last) {
+            return;
+        }
+        MessageDigest digest = BlockManifest.newStrongDigest();
+        byte[] buffer = new byte[SCAN_BUFFER_SIZE + blockSize + 1];
+        long bufferStart = from;
+        int length = read(seed, seedSize, bufferStart, buffer, 0);
+        int position = 0;
+        int weak = 0;
+        boolean rolling = false;
+        while (bufferStart + position <= last) {
+            if (position + blockSize >= length && bufferStart + length < seedSize) {
+                // Keeps the window and the byte after it in the buffer
+                System.arraycopy(buffer, position, buffer, 0, length - position);
+                bufferStart += position;
+                length -= position;
+                position = 0;
+                length += read(seed, seedSize, bufferStart + length, buffer, length);
+            }
+            if (!rolling) {
+                weak = BlockManifest.weakChecksum(buffer, position, blockSize);
+                rolling = true;
+            }
+            int[] candidates = this.manifest.getBlocksWithWeak(weak);
+            if (candidates != null && match(candidates, buffer, position, bufferStart + position, digest, found)) {
+                position += blockSize;
+                rolling = false;
+                continue;
+            }
+            if (bufferStart + position == last) {
+                break;
+            }
+            weak = BlockManifest.roll(weak, blockSize, buffer[position], buffer[position + blockSize]);
+            position++;
+        }
+    }
+
+    /**
+     * @return true if the window is one of the candidate blocks
+     */
+    private boolean match(int[] candidates, byte[] buffer, int position, long offset, MessageDigest digest, AtomicLongArray found) {
+        byte[] strong = BlockManifest.strongChecksum(digest, buffer, position, this.manifest.getBlockSize());
+        boolean matched = false;
+        for (int block : candidates) {
+            if (this.manifest.hasStrong(block, strong)) {
+                // The same content may be found at several offsets, any of them will do
+                found.compareAndSet(block, -1, offset);
+                matched = true;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Reads from the given offset of the older copy into the rest of the buffer, or up to the end of the copy.
+     *
+     * @return the number of bytes read
+     */
+    private static int read(FileChannel seed, long seedSize, long offset, byte[] buffer, int bufferOffset) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(buffer, bufferOffset, (int) Math.min(buffer.length - bufferOffset, seedSize - offset));
+        while (data.hasRemaining()) {
+            if (seed.read(data, offset + data.position() - bufferOffset) < 0) {
+                throw new IOException("The older copy is shorter than its size");
+            }
+        }
+        return data.position() - bufferOffset;
+    }
+}
@@ -0,0 +1,226 @@
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and time histograms of one download, to tell whether it is bound by the network, the rate limit, the
+ * buffers or the disk:
+ *
+ * - received bytes, in total and per connection
+ * - time blocked in TokenBucket.take() (rate limit) and in BufferPool.acquire() (memory budget)
+ * - latency of the chunk writes, of the fsyncs and of the metadata saves
+ * - bytes written but not committed yet, failed requests (retries), stolen ranges and hedged ranges
+ *
+ * The metrics are exposed over JMX while the download runs, and as JSON lines by the MetricsReporter.
+ */
+class DownloadMetrics implements DownloadMetricsMXBean {
+    private final DownloadableMetadata metaData;
+    private final RangeScheduler scheduler;
+    private final ConcurrencyController concurrency;
+    private final LongAdder[] connectionBytes;
+    private final LongAdder receivedBytes = new LongAdder();
+    final LatencyHistogram tokenWait = new LatencyHistogram();
+    final LatencyHistogram bufferWait = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+    final LatencyHistogram fsyncLatency = new LatencyHistogram();
+    final LatencyHistogram metadataSaveLatency = new LatencyHistogram();
+    private volatile LongSupplier unsyncedBytes = () -> 0;
+    private ObjectName objectName;
+    // Totals at the last JSON line, for its rates
+    private long lastReportNanos = System.nanoTime();
+    private long lastReceivedBytes;
+    private long[] lastConnectionBytes;
+
+    DownloadMetrics(DownloadableMetadata metaData, RangeScheduler scheduler, ConcurrencyController concurrency, int numberOfConnections) {
+        this.metaData = metaData;
+        this.scheduler = scheduler;
+        this.concurrency = concurrency;
+        this.connectionBytes = new LongAdder[numberOfConnections];
+        for (int i = 0; i < numberOfConnections; i++) {
+            this.connectionBytes[i] = new LongAdder();
+        }
+        this.lastConnectionBytes = new long[numberOfConnections];
+    }
+
+    /**
+     * Called by the getter of the given connection for every read.
+     */
+    void received(int connection, long bytes) {
+        this.connectionBytes[connection].add(bytes);
+        this.receivedBytes.add(bytes);
+    }
+
+    void setUnsyncedBytes(LongSupplier unsyncedBytes) {
+        this.unsyncedBytes = unsyncedBytes;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server. A download whose name is already registered (e.g. the
+     * same file twice in a batch) is left out of JMX.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("IdcDm:type=Download,name=" + ObjectName.quote(this.metaData.getFilename()));
+            server.registerMBean(this, name);
+            this.objectName = name;
+        } catch (JMException e) {
+            // JSON lines still work
+        }
+    }
+
+    void unregister() {
+        if (this.objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            // Already gone
+        }
+        this.objectName = null;
+    }
+
+    @Override
+    public String getFilename() {
+        return this.metaData.getFilename();
+    }
+
+    @Override
+    public long getFullSize() {
+        return this.metaData.getFullSize();
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return this.metaData.getSizeWasDownloaded();
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return this.receivedBytes.sum();
+    }
+
+    @Override
+    public long[] getConnectionReceivedBytes() {
+        long[] bytes = new long[this.connectionBytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = this.connectionBytes[i].sum();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int getConnectionLimit() {
+        return this.concurrency.getLimit();
+    }
+
+    @Override
+    public int getFailures() {
+        return this.scheduler.getFailures();
+    }
+
+    @Override
+    public int getSteals() {
+        return this.scheduler.getSteals();
+    }
+
+    @Override
+    public int getHedges() {
+        return this.scheduler.getHedges();
+    }
+
+    @Override
+    public long getUnsyncedBytes() {
+        return this.unsyncedBytes.getAsLong();
+    }
+
+    @Override
+    public Map<String, Long> getTokenWait() {
+        return this.tokenWait.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getBufferWait() {
+        return this.bufferWait.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getWriteLatency() {
+        return this.writeLatency.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getFsyncLatency() {
+        return this.fsyncLatency.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getMetadataSaveLatency() {
+        return this.metadataSaveLatency.snapshot();
+    }
+
+    /**
+     * @return one JSON object with the totals, and the throughput since the previous call
+     */
+    synchronized String toJson() {
+        long now = System.nanoTime();
+        double seconds = Math.max(now - this.lastReportNanos, 1) / 1e9;
+        long received = getReceivedBytes();
+        long[] connections = getConnectionReceivedBytes();
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":").append(System.currentTimeMillis());
+        json.append(",\"file\":\"").append(escape(getFilename())).append('"');
+        json.append(",\"fullSize\":").append(getFullSize());
+        json.append(",\"downloadedBytes\":").append(getDownloadedBytes());
+        json.append(",\"receivedBytes\":").append(received);
+        json.append(",\"bytesPerSecond\":").append((long) ((received - this.lastReceivedBytes) / seconds));
+        json.append(",\"connectionBytesPerSecond\":[");
+        for (int i = 0; i < connections.length; i++) {
+            json.append(i > 0 ? "," : "").append((long) ((connections[i] - this.lastConnectionBytes[i]) / seconds));
+        }
+        json.append("],\"connectionLimit\":").append(getConnectionLimit());
+        json.append(",\"failures\":").append(getFailures());
+        json.append(",\"steals\":").append(getSteals());
+        json.append(",\"hedges\":").append(getHedges());
+        json.append(",\"unsyncedBytes\":").append(getUnsyncedBytes());
+        appendHistogram(json, "tokenWait", this.tokenWait);
+        appendHistogram(json, "bufferWait", this.bufferWait);
+        appendHistogram(json, "writeLatency", this.writeLatency);
+        appendHistogram(json, "fsyncLatency", this.fsyncLatency);
+        appendHistogram(json, "metadataSaveLatency", this.metadataSaveLatency);
+        json.append('}');
+        this.lastReportNanos = now;
+        this.lastReceivedBytes = received;
+        this.lastConnectionBytes = connections;
+        return json.toString();
+    }
+
+    private static void appendHistogram(StringBuilder json, String name, LatencyHistogram histogram) {
+        json.append(",\"").append(name).append("\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : histogram.snapshot().entrySet()) {
+            json.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            first = false;
+        }
+        json.append('}');
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.Map;
+
+/**
+ * The JMX view of the DownloadMetrics of one download, registered as IdcDm:type=Download,name="FILE".
+ *
+ * The time histograms are maps of count, totalMicros, meanMicros, p50Micros, p99Micros and maxMicros.
+ */
+public interface DownloadMetricsMXBean {
+    String getFilename();
+
+    long getFullSize();
+
+    long getDownloadedBytes();
+
+    long getReceivedBytes();
+
+    long[] getConnectionReceivedBytes();
+
+    int getConnectionLimit();
+
+    int getFailures();
+
+    int getSteals();
+
+    int getHedges();
+
+    long getUnsyncedBytes();
+
+    Map<String, Long> getTokenWait();
+
+    Map<String, Long> getBufferWait();
+
+    Map<String, Long> getWriteLatency();
+
+    Map<String, Long> getFsyncLatency();
+
+    Map<String, Long> getMetadataSaveLatency();
+}
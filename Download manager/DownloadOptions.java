@@ -0,0 +1,166 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The settings of a download, from the command-line arguments and the idc.* system properties (see README.txt).
+ */
+class DownloadOptions {
+    static final long DEFAULT_TRACKING_GRANULARITY = 256 * 1024;
+
+    final String concurrencySpec;
+    final Long maxBytesPerSecond;
+    final Long maxBytesPerConnection;
+    final Long maxGlobalBytesPerSecond;
+    final Long burst;
+    final TokenBucket.Mode rateLimitMode;
+    final DurabilityPolicy durabilityPolicy;
+    final long bufferBudget;
+    final boolean preferHttp2;
+    final OutputFile.Mode outputMode;
+    final int minReadSize;
+    final int maxReadSize;
+    final long trackingGranularity;
+    final Long rangeSize;
+    final boolean verifyOnResume;
+    final String expectedCrc32c;
+    final String sha256;
+    final String metricsDestination;
+    final long metricsPeriod;
+    final String streamDestination;
+    final int streamBufferSize;
+    final String deltaSeed;
+    final Long sharedLeaseTime;
+    final boolean virtualThreads;
+
+    private DownloadOptions(String concurrencySpec, Long maxBytesPerSecond) {
+        this.concurrencySpec = concurrencySpec;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.maxBytesPerConnection = Long.getLong("idc.connectionLimit");
+        this.maxGlobalBytesPerSecond = Long.getLong("idc.globalLimit");
+        this.burst = Long.getLong("idc.burst");
+        this.rateLimitMode = TokenBucket.Mode.valueOf(System.getProperty("idc.rateLimit", "soft").toUpperCase());
+        this.durabilityPolicy = DurabilityPolicy.parse(System.getProperty("idc.durability"));
+        this.bufferBudget = Long.getLong("idc.bufferBudget", BufferPool.DEFAULT_BYTE_BUDGET);
+        this.preferHttp2 = !"false".equals(System.getProperty("idc.http2"));
+        this.outputMode = OutputFile.Mode.valueOf(System.getProperty("idc.output", "channel").toUpperCase());
+        this.minReadSize = Integer.getInteger("idc.minReadSize", ReadSize.DEFAULT_MIN_SIZE);
+        this.maxReadSize = Integer.getInteger("idc.maxReadSize", Math.max(ReadSize.DEFAULT_MAX_SIZE, this.minReadSize));
+        if (this.maxReadSize > 1 << 30) {
+            throw new IllegalArgumentException("The read size must be at most 1 GB");
+        }
+        new ReadSize(this.minReadSize, this.maxReadSize);
+        this.trackingGranularity = Long.getLong("idc.trackingGranularity", DEFAULT_TRACKING_GRANULARITY);
+        this.rangeSize = Long.getLong("idc.rangeSize");
+        if (this.trackingGranularity <= 0 || (this.rangeSize != null && this.rangeSize <= 0)) {
+            throw new IllegalArgumentException("The tracking granularity and the range size must be positive");
+        }
+        this.verifyOnResume = !"false".equals(System.getProperty("idc.verify"));
+        this.expectedCrc32c = System.getProperty("idc.crc32c");
+        this.sha256 = System.getProperty("idc.sha256");
+        this.metricsDestination = System.getProperty("idc.metrics");
+        this.metricsPeriod = Long.getLong("idc.metricsPeriod", MetricsReporter.DEFAULT_PERIOD);
+        if (this.metricsPeriod <= 0) {
+            throw new IllegalArgumentException("The metrics period must be positive");
+        }
+        this.streamDestination = System.getProperty("idc.stream");
+        this.streamBufferSize = Integer.getInteger("idc.streamBuffer", StreamingOutput.DEFAULT_BUFFER_SIZE);
+        if (this.streamBufferSize <= 0) {
+            throw new IllegalArgumentException("The stream buffer size must be positive");
+        }
+        this.deltaSeed = System.getProperty("idc.delta");
+        this.sharedLeaseTime = "true".equals(System.getProperty("idc.shared"))
+                ? Long.getLong("idc.sharedLease", SharedClaims.DEFAULT_LEASE_TIME) : null;
+        if (this.sharedLeaseTime != null && this.sharedLeaseTime < 3) {
+            throw new IllegalArgumentException("The lease time must be at least 3 milliseconds");
+        }
+        if (this.sharedLeaseTime != null && (this.streamDestination != null || this.deltaSeed != null)) {
+            throw new IllegalArgumentException("A shared download can neither be streamed nor seeded from an older copy");
+        }
+        String threads = System.getProperty("idc.threads", "platform");
+        if (!threads.equals("platform") && !threads.equals("virtual")) {
+            throw new IllegalArgumentException("The threads must be platform or virtual");
+        }
+        this.virtualThreads = threads.equals("virtual");
+        try {
+            newThreadFactory("idc");
+        } catch (UnsupportedOperationException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if ("-".equals(this.streamDestination) && "-".equals(this.metricsDestination)) {
+            throw new IllegalArgumentException("The stream and the metrics cannot both go to the standard output");
+        }
+        // Fail early on an invalid number of connections
+        newConcurrencyController();
+    }
+
+    /**
+     * @param concurrencySpec the MAX-CONCURRENT-CONNECTIONS argument
+     * @param maxBytesPerSecond the MAX-DOWNLOAD-LIMIT argument, or null
+     * @throws IllegalArgumentException if one of the settings is invalid
+     */
+    static DownloadOptions fromSystemProperties(String concurrencySpec, Long maxBytesPerSecond) {
+        return new DownloadOptions(concurrencySpec, maxBytesPerSecond);
+    }
+
+    /**
+     * Every download needs its own controller, since the controller keeps the state of its download.
+     */
+    ConcurrencyController newConcurrencyController() {
+        return ConcurrencyController.parse(this.concurrencySpec);
+    }
+
+    /**
+     * Every connection needs its own read size, since it adapts to the throughput of the connection.
+     *
+     * @param maxBufferSize the largest buffer the connection can get from its BufferPool
+     */
+    ReadSize newReadSize(int maxBufferSize) {
+        return new ReadSize(Math.min(this.minReadSize, maxBufferSize), Math.min(this.maxReadSize, maxBufferSize));
+    }
+
+    /**
+     * @return the reporter of the JSON metric lines, shared by all the downloads of this process, or null if
+     *         idc.metrics is not set
+     */
+    MetricsReporter newMetricsReporter() throws IOException {
+        return this.metricsDestination != null ? MetricsReporter.open(this.metricsDestination, this.metricsPeriod) : null;
+    }
+
+    /**
+     * @return the consumer of the streamed file, or null if idc.stream is not set
+     */
+    WritableByteChannel openStream() throws IOException {
+        if (this.streamDestination == null) {
+            return null;
+        }
+        return (this.streamDestination.equals("-") ? new FileOutputStream(FileDescriptor.out) : new FileOutputStream(this.streamDestination)).getChannel();
+    }
+
+    /**
+     * @param name prefix of the names of the threads
+     * @return the factory of the threads of the downloads: the RangeWorkers, the committers and the downloads of a
+     *         batch, virtual threads if idc.threads is virtual
+     */
+    ThreadFactory newThreadFactory(String name) {
+        return TaskScope.threadFactory(this.virtualThreads, name);
+    }
+
+    /**
+     * @return an executor of at most the given number of tasks at once, on threads of newThreadFactory()
+     */
+    ExecutorService newExecutor(String name, int threads) {
+        return Executors.newFixedThreadPool(threads, newThreadFactory(name));
+    }
+
+    /**
+     * @return the budget of the host, shared by all the downloads of this process
+     */
+    TokenBucket newGlobalBucket() {
+        return TokenBucket.forLimit(this.maxGlobalBytesPerSecond, this.burst, this.rateLimitMode);
+    }
+}
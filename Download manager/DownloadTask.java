@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads one URL, or one file from several mirrors given as "URL|URL|...", using resources that may be shared
+ * with other downloads: the HttpTransport, the global TokenBucket, the ConnectionSlots, the executor that runs the
+ * FileWriters' committers and the MetricsReporter.
+ */
+class DownloadTask {
+    static final long SMALL_FILE_SIZE = 1024 * 1024;
+
+    private final String url;
+    private final int priority;
+    private final DownloadOptions options;
+    private final HttpTransport transport;
+    private final TokenBucket globalBucket;
+    private final ConnectionSlots connectionSlots;
+    private final ExecutorService writers;
+    private final boolean smallFileFastPath;
+    private final MetricsReporter metricsReporter;
+    private final MirrorSet mirrors;
+    private WritableByteChannel streamConsumer;
+    private DownloadableMetadata metaData;
+
+    /**
+     * @param smallFileFastPath download files up to SMALL_FILE_SIZE over a single connection, synced once at the end
+     * @param metricsReporter reporter of the metrics of the download as JSON lines, or null
+     */
+    DownloadTask(String url, int priority, DownloadOptions options, HttpTransport transport, TokenBucket globalBucket,
+                 ConnectionSlots connectionSlots, ExecutorService writers, boolean smallFileFastPath,
+                 MetricsReporter metricsReporter) {
+        this.url = url;
+        this.mirrors = new MirrorSet(url);
+        this.priority = priority;
+        this.options = options;
+        this.transport = transport;
+        this.globalBucket = globalBucket;
+        this.connectionSlots = connectionSlots;
+        this.writers = writers;
+        this.smallFileFastPath = smallFileFastPath;
+        this.metricsReporter = metricsReporter;
+    }
+
+    String getUrl() {
+        return this.url;
+    }
+
+    /**
+     * Streams the file, in order, to the given consumer while it is downloaded. The consumer is closed at the end.
+     */
+    void setStreamConsumer(WritableByteChannel streamConsumer) {
+        this.streamConsumer = streamConsumer;
+    }
+
+    /**
+     * Initiate the file's metadata, and download its missing ranges:
+     * 1. Setup the BufferPool, DownloadableMetadata, FileWriter, RangeScheduler, ConcurrencyController
+     *    and a pool of RangeWorkers, each of which keeps downloading ranges and writing them until none is left
+     * 2. Fork the RangeWorkers, the FileWriter's committer, the ConcurrencyController and the StreamingOutput, if
+     *    any, in one TaskScope. The last RangeWorker that stops finishes the FileWriter and the stream
+     * 3. Join the scope. The first task that failed cancelled the others, and fails the download
+     *
+     * Finally, check the file against the expected checksums, and delete the metadata if the download succeeded.
+     *
+     * @param progressLabel printed before the progress messages of the FileWriter
+     * @return true if the whole file was downloaded
+     */
+    boolean download(String progressLabel) {
+        try {
+            this.metaData = new DownloadableMetadata(this.mirrors.getPrimaryUrl(), this.transport, this.options.verifyOnResume,
+                    this.options.deltaSeed != null ? BlockManifest.DEFAULT_BLOCK_SIZE : SMALL_FILE_SIZE, this.options.sharedLeaseTime);
+        } catch (IOException e) {
+            System.err.println(progressLabel + "Failed to create metaData object");
+            return false;
+        }
+        try {
+            this.mirrors.probe(this.transport, this.metaData.getFileInfo(), progressLabel);
+        } catch (InterruptedException e) {
+            System.err.println(progressLabel + "Interrupted while probing the mirrors");
+            this.metaData.close();
+            return false;
+        }
+        Path movedSeed = this.options.deltaSeed != null ? seedFromOlderCopy(progressLabel) : null;
+        ConcurrencyController concurrency = this.options.newConcurrencyController();
+        DurabilityPolicy durabilityPolicy = this.options.durabilityPolicy;
+        if (this.smallFileFastPath && this.metaData.getFullSize() <= SMALL_FILE_SIZE) {
+            concurrency = ConcurrencyController.fixed(1);
+            durabilityPolicy = DurabilityPolicy.atEnd();
+        }
+        boolean downloadSuccess = true;
+        int numberOfWorkers = concurrency.getCeiling();
+        TokenBucket tokenBucket = this.globalBucket.child(this.options.maxBytesPerSecond, this.options.burst, this.options.rateLimitMode);
+        BufferPool bufferPool = new BufferPool(this.options.minReadSize, this.options.maxReadSize, this.options.bufferBudget, numberOfWorkers);
+        Long rangeSize = this.options.rangeSize;
+        if (rangeSize == null && this.streamConsumer != null) {
+            // Keeps the ranges in flight within about half of the stream's window
+            rangeSize = Math.max(RangeScheduler.MIN_SPLIT_SIZE, this.options.streamBufferSize / (2L * numberOfWorkers));
+        }
+        this.metaData.setMaxRangeSize(numberOfWorkers, rangeSize);
+        RangeScheduler scheduler = new RangeScheduler(this.metaData, numberOfWorkers);
+        concurrency.setScheduler(scheduler);
+        DownloadMetrics metrics = new DownloadMetrics(this.metaData, scheduler, concurrency, numberOfWorkers);
+        FileWriter fileWriter;
+        try {
+            fileWriter = new FileWriter(this.metaData, durabilityPolicy, bufferPool, progressLabel, this.options.outputMode, metrics);
+        } catch (IOException e) {
+            System.err.println(progressLabel + "Failed to open the file");
+            tokenBucket.close();
+            this.metaData.close();
+            return false;
+        }
+        metrics.register();
+        if (this.metricsReporter != null) {
+            this.metricsReporter.add(metrics);
+        }
+        StreamingOutput stream = null;
+        if (this.streamConsumer != null) {
+            stream = new StreamingOutput(this.streamConsumer, this.metaData, this.options.streamBufferSize);
+            fileWriter.setStream(stream);
+            scheduler.setStream(stream);
+        }
+        TaskScope scope = new TaskScope(this.options.newThreadFactory("download"));
+        // A failed task stops the others, and the committer commits what was written so far
+        scope.onCancel(scheduler::cancel);
+        scope.onCancel(concurrency::terminate);
+        scope.onCancel(fileWriter::finish);
+        if (stream != null) {
+            scope.onCancel(stream::finish);
+            scope.fork(stream::run);
+        }
+        scope.fork(this.writers, fileWriter::run);
+        scope.fork(concurrency::run);
+        StreamingOutput finalStream = stream;
+        AtomicInteger runningWorkers = new AtomicInteger(numberOfWorkers);
+        for(int i = 0; i < numberOfWorkers; i++) {
+            RangeWorker worker = new RangeWorker(i, concurrency, this.mirrors, progressLabel, scheduler, fileWriter, tokenBucket,
+                    this.options.maxBytesPerConnection, bufferPool, this.transport, this.connectionSlots, this.priority,
+                    this.options.newReadSize(bufferPool.getMaxBufferSize()), this.options.trackingGranularity, metrics);
+            scope.fork(() -> {
+                try {
+                    worker.run();
+                } finally {
+                    if (runningWorkers.decrementAndGet() == 0) {
+                        // Nothing more is written once the last worker stopped
+                        fileWriter.finish();
+                        if (finalStream != null) {
+                            finalStream.finish();
+                        }
+                    }
+                }
+            });
+        }
+        Throwable failure = scope.join();
+        if (failure != null) {
+            System.err.println(progressLabel + (failure instanceof UncheckedIOException ? failure.getMessage() : "A download thread failed: " + failure));
+            downloadSuccess = false;
+        }
+        tokenBucket.close();
+        if (this.metricsReporter != null) {
+            this.metricsReporter.remove(metrics);
+        }
+        metrics.unregister();
+        if (this.mirrors.size() > 1) {
+            System.err.println(this.mirrors.getReport().replaceAll("(?m)^", progressLabel));
+        }
+        if (stream != null) {
+            System.err.println(progressLabel + stream.getReport());
+            downloadSuccess = downloadSuccess && stream.isComplete();
+        }
+        if (scheduler.isFileChanged()) {
+            // The ranges on disk belong to the old file, the next run starts from scratch
+            System.err.println(progressLabel + "The file changed on the server during the download, run again to download the new file");
+            this.metaData.delete();
+            return false;
+        }
+        downloadSuccess = downloadSuccess && this.metaData.isCompleted() && verifyFile(progressLabel);
+        if (!downloadSuccess) {
+            this.metaData.close();
+        } else {
+            this.metaData.delete();
+            if (movedSeed != null) {
+                try {
+                    Files.deleteIfExists(movedSeed);
+                } catch (IOException e) {
+                    System.err.println(progressLabel + "Failed to delete " + movedSeed);
+                }
+            }
+        }
+        return downloadSuccess;
+    }
+
+    /**
+     * Copies the blocks of the older copy given in idc.delta that did not change into the file, so only the rest is
+     * downloaded. An older copy at the destination itself is moved aside to FILENAME.old first. A resumed download
+     * only looks for the blocks it still misses.
+     *
+     * @return the older copy if it was moved aside, to delete once the download succeeded, otherwise null
+     */
+    private Path seedFromOlderCopy(String progressLabel) {
+        Path target = Paths.get(this.metaData.getFilename());
+        Path seed = Paths.get(this.options.deltaSeed);
+        Path movedSeed = null;
+        try {
+            if (Files.exists(seed) && Files.exists(target) && Files.isSameFile(seed, target)) {
+                movedSeed = Paths.get(this.metaData.getFilename() + ".old");
+                if (!this.metaData.isResumed()) {
+                    Files.move(target, movedSeed, StandardCopyOption.REPLACE_EXISTING);
+                }
+                seed = movedSeed;
+            }
+            long started = System.nanoTime();
+            long copied = DeltaUpdater.forUrl(this.transport, this.mirrors.getPrimaryUrl()).seed(seed, this.metaData, target);
+            System.err.println(progressLabel + String.format("Reused %d of %d bytes of %s in %d ms", copied,
+                    this.metaData.getFullSize(), seed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)));
+        } catch (IOException e) {
+            System.err.println(progressLabel + "Downloading the whole file, the older copy was not used: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.err.println(progressLabel + "Interrupted while looking for the older copy's blocks, downloading the whole file");
+        }
+        return movedSeed;
+    }
+
+    /**
+     * Compares the CRC32C of the file, assembled from the checksums of its ranges, and optionally its SHA-256,
+     * which takes a sequential pass over the file, with the expected values.
+     *
+     * @return true if every expected value matches
+     */
+    private boolean verifyFile(String progressLabel) {
+        Integer checksum = this.metaData.getFileChecksum();
+        if (checksum == null) {
+            System.err.println(progressLabel + "The checksums of the file are incomplete");
+            return false;
+        }
+        String crc32c = String.format("%08x", checksum);
+        if (this.options.expectedCrc32c != null) {
+            if (!this.options.expectedCrc32c.equalsIgnoreCase(crc32c)) {
+                System.err.println(progressLabel + "CRC32C mismatch: expected " + this.options.expectedCrc32c + ", got " + crc32c);
+                return false;
+            }
+            System.err.println(progressLabel + "CRC32C verified: " + crc32c);
+        }
+        if (this.options.sha256 != null) {
+            String sha256;
+            try {
+                sha256 = sha256(this.metaData.getFilename());
+            } catch (IOException e) {
+                System.err.println(progressLabel + "Failed to read the file for its SHA-256");
+                return false;
+            }
+            if (this.options.sha256.equals("true")) {
+                System.err.println(progressLabel + "SHA-256: " + sha256);
+            } else if (!this.options.sha256.equalsIgnoreCase(sha256)) {
+                System.err.println(progressLabel + "SHA-256 mismatch: expected " + this.options.sha256 + ", got " + sha256);
+                return false;
+            } else {
+                System.err.println(progressLabel + "SHA-256 verified: " + sha256);
+            }
+        }
+        return true;
+    }
+
+    private static String sha256(String filename) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[1024 * 1024];
+        try (InputStream input = Files.newInputStream(Paths.get(filename))) {
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -1,138 +1,241 @@
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 /**
  * Describes a file's metadata: URL, file name, size, and which parts already downloaded to disk.
  *
- * The metadata (or at least which parts already downloaded to disk) is constantly stored safely in disk.
+ * The metadata (or at least which parts already downloaded to disk) is constantly stored safely in disk,
+ * as a snapshot plus an append-only journal of completed ranges (see MetadataJournal).
  * When constructing a new metadata object, we first check the disk to load existing metadata.
  *
- * CHALLENGE: try to avoid metadata disk footprint of O(n) in the average case
- * HINT: avoid the obvious bitmap solution, and think about ranges...
+ * Which parts were downloaded is kept in a RangeIndex of coalesced runs rather than a bitmap,
+ * so both the memory and the disk footprint are O(runs) instead of O(file size).
+ *
+ * Every downloaded range comes with the CRC32C its getter computed while reading it, kept in a ChecksumIndex.
+ * On resume the ranges on disk are checked against their checksums, and the corrupted ones are downloaded again.
+ *
+ * No HEAD request is needed: a new download learns the size and the validators (ETag, Last-Modified) of the file
+ * from the Content-Range of its first range request, and a resumed download takes them from the snapshot, and
+ * sends its first range request with If-Range. A server that answers it with the whole file (200) has a
+ * different file now, and the download starts again from scratch. Either way the response of the first request
+ * is kept for the first getter, so the first bytes arrive one round-trip sooner.
+ *
+ * In shared-claim mode several processes download the file together (see SharedClaims). The metadata then keeps
+ * no journal: the ranges of the file start out as claimed elsewhere, and become missing, for this process to
+ * download, as it leases them from the claim table. A unit of the table is marked done once this process
+ * committed all of it.
  */
 class DownloadableMetadata {
 	static final byte CHUNK_WAS_NOT_DOWNLOADED = 0;
 	static final byte CHUNK_WAS_DOWNLOADED_ALREADY = 1;
 	static final byte CHUNK_IN_PROCESS_OF_DOWNLOAD = 2;
+	static final byte CHUNK_CLAIMED_ELSEWHERE = 3;
 	
     private final String metadataFilename;
     private String filename;
     private String url;
-    private byte[] downladableParts;
-    private AtomicInteger sizeWasDownloaded;
-    private int fullSize;
-    private int numOfMaxChunksToWorker;
+    private final MetadataJournal journal;
+    private RangeIndex downladableParts;
+    private final ChecksumIndex checksums = new ChecksumIndex();
+    private long fullSize;
+    private long maxRangeSize;
+    private HttpTransport.FileInfo fileInfo;
+    private boolean resumed;
+    // The response to the first request, until the RangeScheduler takes it
+    private HttpTransport.RangeResponse firstResponse;
+    // The claim table in shared-claim mode, otherwise null
+    private SharedClaims sharedClaims;
+
+    /**
+     * @param verifyOnResume check the downloaded ranges of a previous run against their checksums
+     * @param firstRangeSize maximal size of the first range, which is requested right away
+     */
+    DownloadableMetadata(String url, HttpTransport transport, boolean verifyOnResume, long firstRangeSize) throws IOException {
+    	this(url, transport, verifyOnResume, firstRangeSize, null);
+    }
 
-    DownloadableMetadata(String url) throws IOException {
+    /**
+     * @param sharedLeaseTime lease time (milliseconds) of the claims in shared-claim mode, or null for a download of
+     *        its own
+     */
+    DownloadableMetadata(String url, HttpTransport transport, boolean verifyOnResume, long firstRangeSize, Long sharedLeaseTime) throws IOException {
         this.url = url;
         this.filename = getName(url);
         this.metadataFilename = getMetadataName(filename);
-        File metaData = new File(this.metadataFilename);
-        boolean successToReproduceMetaData = false;
-        if(!metaData.createNewFile()) {
-        	while(!successToReproduceMetaData) {
-            	try {
-            		reproduceMetaDataFile(metaData);
-            		successToReproduceMetaData = true;
-            	} catch (ClassNotFoundException | IOException e) {
-            		metaData = new File(this.filename + ".tmp");
-            	}
+        this.journal = new MetadataJournal(this.metadataFilename, this.filename + ".tmp");
+        try {
+        	if (sharedLeaseTime != null) {
+        		share(transport, sharedLeaseTime);
+        	} else if(this.journal.exists()) {
+        		resume(transport, verifyOnResume, firstRangeSize);
         	}
-        } else {
-        	this.sizeWasDownloaded = new AtomicInteger(0);
-        	this.fullSize = getSizeOfFile();
-        	// Split the all file to chunks. Chunk size is the basic size that each worker works with.
-        	this.downladableParts = new byte[(int) Math.ceil(this.fullSize / (HTTPRangeGetter.CHUNK_SIZE + 0.0))];
-        	initilizeDownladableParts();
+        	if(this.downladableParts == null) {
+        		start(transport, firstRangeSize);
+        	}
+        } catch (InterruptedException e) {
+        	throw new IOException("Interrupted while requesting the file", e);
         }
     }
-    
-    private void initilizeDownladableParts() {
-    	for(int i = 0; i < this.downladableParts.length; i++) {
-    		this.downladableParts[i] = CHUNK_WAS_NOT_DOWNLOADED;
+
+    private void resume(HttpTransport transport, boolean verifyOnResume, long firstRangeSize) throws IOException, InterruptedException {
+    	try {
+    		this.downladableParts = this.journal.load(this.checksums);
+    	} catch (IOException e) {
+    		// The stored metadata is unusable, start from scratch
+    		this.journal.delete();
+    		this.checksums.remove(0, Long.MAX_VALUE);
+    		return;
+    	}
+    	this.fileInfo = this.journal.getFileInfo();
+    	this.resumed = true;
+    	this.fullSize = this.downladableParts.getSize();
+    	if (verifyOnResume) {
+    		verifyDownloadedRanges();
     	}
+    	Range first = this.downladableParts.claim(firstRangeSize);
+    	if (first == null) {
+    		return;
+    	}
+    	HttpTransport.RangeResponse response = transport.requestRange(this.url, first.getStart(), first.getEnd(), this.fileInfo.getValidator());
+    	if (!response.partial || response.info.size != this.fullSize) {
+    		if (response.body != null) {
+    			response.body.close();
+    		}
+    		System.err.println("The file changed on the server, downloading it again from the start");
+    		this.journal.delete();
+    		this.checksums.remove(0, Long.MAX_VALUE);
+    		this.downladableParts = null;
+    		this.resumed = false;
+    		return;
+    	}
+    	keepFirstResponse(first, response);
     }
-    
-    public void setNumOfMaxChunksToWorker(int numberOfWorkers) {
-    	this.numOfMaxChunksToWorker = (int) Math.ceil((this.fullSize - this.sizeWasDownloaded.get()) / (HTTPRangeGetter.CHUNK_SIZE + 0.0) / (numberOfWorkers + 0.0));
+
+    private void start(HttpTransport transport, long firstRangeSize) throws IOException, InterruptedException {
+    	HttpTransport.RangeResponse response = transport.requestRange(this.url, 0, Math.max(firstRangeSize, 1) - 1, null);
+    	if (response.info.size < 0) {
+    		if (response.body != null) {
+    			response.body.close();
+    		}
+    		throw new IOException("The server did not send the size of " + this.url);
+    	}
+    	this.fileInfo = response.info;
+    	this.fullSize = response.info.size;
+    	this.downladableParts = new RangeIndex(this.fullSize);
+    	// The validators are on disk before any range is
+    	this.journal.setFileInfo(this.fileInfo);
+    	this.journal.compact(this.downladableParts, this.checksums);
+    	Range first = this.downladableParts.claim(response.partial ? firstRangeSize : this.fullSize);
+    	if (first != null) {
+    		keepFirstResponse(first, response);
+    	}
     }
-    
-    private void reproduceMetaDataFile(File metaData) throws IOException, ClassNotFoundException {
-    	ObjectInputStream objInputStream = new ObjectInputStream(new FileInputStream(metaData));
-    	this.fullSize = getSizeOfFile();
-    	this.downladableParts = getCorrectArray((byte[])objInputStream.readObject());
-   		objInputStream.close();
+
+    /**
+     * Joins the claim table of the file. The ranges are requested only once they are leased, so the size and the
+     * validators are asked for with a HEAD request.
+     */
+    private void share(HttpTransport transport, long leaseTime) throws IOException, InterruptedException {
+    	this.fileInfo = transport.getFileInfo(this.url);
+    	this.fullSize = this.fileInfo.size;
+    	this.downladableParts = new RangeIndex(this.fullSize);
+    	this.downladableParts.mark(0, this.fullSize - 1, CHUNK_CLAIMED_ELSEWHERE);
+    	this.sharedClaims = SharedClaims.open(Paths.get(this.filename + ".claims"), Paths.get(this.filename), this.fileInfo, leaseTime);
     }
-    
-    private int getSizeOfFile() throws IOException {
-       	HttpURLConnection connection = (HttpURLConnection) new URL(this.url).openConnection();
-    	connection.setRequestMethod("HEAD");
-    	connection.connect();
-    	int sizeOfFile = connection.getContentLength();
-    	connection.disconnect();
-    	return sizeOfFile;
+
+    /**
+     * Keeps the response for the first getter, and releases the part of the claimed range it does not cover.
+     */
+    private void keepFirstResponse(Range claimed, HttpTransport.RangeResponse response) {
+    	if (response.end < claimed.getEnd()) {
+    		changeRangeToNotDownloaded(new Range(response.end + 1, claimed.getEnd()));
+    	}
+    	if (response.body == null || response.end < response.start) {
+    		changeRangeToNotDownloaded(claimed);
+    		return;
+    	}
+    	this.firstResponse = response;
+    }
+
+    /**
+     * @return the response to the first request, covering [start, end] of the file, or null if it was taken already
+     */
+    synchronized HttpTransport.RangeResponse takeFirstResponse() {
+    	HttpTransport.RangeResponse response = this.firstResponse;
+    	this.firstResponse = null;
+    	return response;
+    }
+
+    /**
+     * @return true if the download continues the metadata of a previous run
+     */
+    boolean isResumed() {
+    	return this.resumed;
+    }
+
+    /**
+     * @return the size and the validators of the file
+     */
+    HttpTransport.FileInfo getFileInfo() {
+    	return this.fileInfo;
     }
     
-    private byte[] getCorrectArray(byte[] array) {
-    	this.sizeWasDownloaded = new AtomicInteger(0);
-    	for(int i = 0; i < array.length; i++) {
-    		if (array[i] == CHUNK_IN_PROCESS_OF_DOWNLOAD) {
-    			array[i] = CHUNK_WAS_NOT_DOWNLOADED;
-    		} else if (array[i] == CHUNK_WAS_DOWNLOADED_ALREADY) {
-    			if(i == array.length - 1) {
-    				int sizeOfLastChunk = this.fullSize - (array.length - 1) * HTTPRangeGetter.CHUNK_SIZE;
-    				this.sizeWasDownloaded.addAndGet(sizeOfLastChunk);
-    			} else {
-        			this.sizeWasDownloaded.addAndGet(HTTPRangeGetter.CHUNK_SIZE);
-    			}
-    		}
+    /**
+     * Sets the size of the ranges handed to the workers: rangeSize, or by default the missing bytes divided
+     * evenly between the workers.
+     */
+    public void setMaxRangeSize(int numberOfWorkers, Long rangeSize) {
+    	if (rangeSize != null) {
+    		this.maxRangeSize = rangeSize;
+    	} else if (this.sharedClaims != null) {
+    		// Leased a unit at a time, so the participants share the file evenly
+    		this.maxRangeSize = SharedClaims.UNIT_SIZE;
+    	} else {
+    		this.maxRangeSize = (long) Math.ceil((this.fullSize - getSizeWasDownloaded()) / (numberOfWorkers + 0.0));
     	}
-    	return array;
     }
     
-    public void saveMetadataFile() throws IOException {
-    	File metaData = new File(this.metadataFilename);
-    	File tempFile = new File(this.filename + ".tmp");
-    	if(metaData.exists()) {
-        	copyMetaData(metaData, tempFile);
+    /**
+     * Marks the downloaded ranges whose data on disk does not match their checksum, or that have no checksum,
+     * as not downloaded. The ranges are read and checked in parallel.
+     */
+    private void verifyDownloadedRanges() throws IOException {
+    	List<Range> corrupted;
+    	try (FileChannel channel = FileChannel.open(Paths.get(this.filename), StandardOpenOption.READ)) {
+    		corrupted = this.checksums.verify(channel);
+    	} catch (IOException e) {
+    		// The file is gone, none of it can be trusted
+    		corrupted = this.downladableParts.getRuns(CHUNK_WAS_DOWNLOADED_ALREADY);
+    		this.checksums.remove(0, Long.MAX_VALUE);
+    	}
+    	for (Range run : this.downladableParts.getRuns(CHUNK_WAS_DOWNLOADED_ALREADY)) {
+    		corrupted.addAll(this.checksums.getGaps(run.getStart(), run.getEnd()));
+    	}
+    	if (corrupted.isEmpty()) {
+    		return;
     	}
-        ObjectOutputStream objOutputStream = new ObjectOutputStream(new FileOutputStream(this.metadataFilename));
-        objOutputStream.writeObject(this.downladableParts);
-        objOutputStream.close();
-        tempFile.delete();
+    	long corruptedBytes = 0;
+    	for (Range range : corrupted) {
+    		long before = getSizeWasDownloaded();
+    		this.downladableParts.markIf(range.getStart(), range.getEnd(), CHUNK_WAS_DOWNLOADED_ALREADY, CHUNK_WAS_NOT_DOWNLOADED);
+    		corruptedBytes += before - getSizeWasDownloaded();
+    	}
+    	this.journal.compact(this.downladableParts, this.checksums);
+    	System.err.println("Downloading again " + corruptedBytes + " bytes that did not match their checksums");
     }
-    
-    private void copyMetaData(File metaData, File tempFile) throws IOException {
-    	InputStream inputStream = null;
-    	OutputStream outputStream = null;
-    	try {
-    		inputStream = new BufferedInputStream(new FileInputStream(metaData));
-    		outputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
-    		byte[] data = new byte[1024];
-    		int size = inputStream.read(data);
-    		while (size > 0) {
-    			outputStream.write(data, 0, size);
-    			size = inputStream.read(data);
-    		}
-    	} finally {
-    		if(inputStream != null) {
-        		inputStream.close();
-    		}
-    		if(outputStream != null) {
-        		outputStream.close();
-    		}
+
+    /**
+     * Writes the ranges added since the last call to the metadata journal, and forces it to the disk.
+     */
+    public void saveMetadataFile() throws IOException {
+    	if (this.sharedClaims != null) {
+    		this.sharedClaims.flush();
+    		return;
     	}
+    	this.journal.flush(this.downladableParts, this.checksums);
     }
 
     private static String getMetadataName(String filename) {
@@ -143,28 +246,26 @@ class DownloadableMetadata {
         return path.substring(path.lastIndexOf('/') + 1, path.length());
     }
 
-    void addRange(Range range) {
-    	int chunkSize = HTTPRangeGetter.CHUNK_SIZE;
-        long amountOfChunks = (long) Math.ceil(range.getLength() / (chunkSize + 0.0));
-        for(int i = 0; i < amountOfChunks; i++) {
-        	this.downladableParts[(int) ((range.getStart() / chunkSize) + i)] = CHUNK_WAS_DOWNLOADED_ALREADY;
-        	if(i == amountOfChunks - 1) {
-        		int addToWasDownloaded = (int) range.getLength().longValue() - chunkSize * i;
-        		this.sizeWasDownloaded.addAndGet(addToWasDownloaded);
-        	} else {
-            	this.sizeWasDownloaded.addAndGet(chunkSize);
-        	}
-        }
+    /**
+     * @param checksum CRC32C of the data of the range
+     */
+    void addRange(Range range, int checksum) throws IOException {
+    	this.downladableParts.mark(range.getStart(), range.getEnd(), CHUNK_WAS_DOWNLOADED_ALREADY);
+    	this.checksums.add(range.getStart(), range.getEnd(), checksum);
+    	if (this.sharedClaims == null) {
+    		this.journal.append(range, checksum);
+    		return;
+    	}
+    	for (long unit = range.getStart() / SharedClaims.UNIT_SIZE; unit <= range.getEnd() / SharedClaims.UNIT_SIZE; unit++) {
+    		long unitStart = unit * SharedClaims.UNIT_SIZE;
+    		if (this.downladableParts.isAll(unitStart, Math.min(unitStart + SharedClaims.UNIT_SIZE, this.fullSize) - 1, CHUNK_WAS_DOWNLOADED_ALREADY)) {
+    			this.sharedClaims.done(unit);
+    		}
+    	}
     }
     
     void changeRangeToNotDownloaded(Range range) {
-    	int numOfChunks = (int) Math.ceil(range.getLength().intValue() / (HTTPRangeGetter.CHUNK_SIZE + 0.0));
-    	int indexStart = (int) (range.getStart() / HTTPRangeGetter.CHUNK_SIZE);
-    	for(int i = 0; i < numOfChunks; i++) {
-    		if(this.downladableParts[indexStart + i] == CHUNK_IN_PROCESS_OF_DOWNLOAD) {
-        		this.downladableParts[indexStart + i] = CHUNK_WAS_NOT_DOWNLOADED;
-    		}
-    	}
+    	this.downladableParts.markIf(range.getStart(), range.getEnd(), CHUNK_IN_PROCESS_OF_DOWNLOAD, CHUNK_WAS_NOT_DOWNLOADED);
     }
 
     String getFilename() {
@@ -172,65 +273,109 @@ class DownloadableMetadata {
     }
     
     boolean isCompleted() {
-    	return this.fullSize <= this.sizeWasDownloaded.get();
+    	if (this.sharedClaims != null) {
+    		try {
+    			return this.sharedClaims.isComplete();
+    		} catch (IOException e) {
+    			System.err.println("Failed to read the claim table: " + e.getMessage());
+    			return false;
+    		}
+    	}
+    	return this.downladableParts.isCompleted();
+    }
+
+    /**
+     * @return true if, in shared-claim mode, other processes still download ranges that may be left to this one
+     */
+    boolean isClaimedElsewhere() {
+    	return this.sharedClaims != null && !isCompleted();
+    }
+
+    /**
+     * Stops sharing the download: the units this process leased and did not finish are freed for the others.
+     */
+    void close() {
+    	if (this.sharedClaims != null) {
+    		this.sharedClaims.close();
+    	}
     }
 
     void delete() {
-        File metaData = new File("./" + this.metadataFilename);
-        metaData.delete();
-        File tempFile = new File(this.filename + ".tmp");
-        if(tempFile.exists()) {
-        	tempFile.delete();
-        }
+    	HttpTransport.RangeResponse response = takeFirstResponse();
+    	if (response != null) {
+    		try {
+    			response.body.close();
+    		} catch (IOException e) {
+    			// The response is given up either way
+    		}
+    	}
+    	if (this.sharedClaims != null) {
+    		// The table stays: other participants may still start, and must find the file complete (see SharedClaims)
+    		this.sharedClaims.close();
+    		return;
+    	}
+    	this.journal.delete();
     }
     
     Range getMissingRange() {
-    	Long startRange = null;
-    	Long endRange = null;
-    	int numOfChunkToWorker = 0;
-    	boolean startCounting = false;
-        for(int i = 0; i < this.downladableParts.length; i++) {
-        	if(startCounting && (this.downladableParts[i] == CHUNK_IN_PROCESS_OF_DOWNLOAD || this.downladableParts[i] == CHUNK_WAS_DOWNLOADED_ALREADY)) {
-        		endRange = startRange + numOfChunkToWorker;
-        		return new Range(startRange * HTTPRangeGetter.CHUNK_SIZE, endRange * HTTPRangeGetter.CHUNK_SIZE - 1);
-        	}
-        	if (numOfChunkToWorker == this.numOfMaxChunksToWorker) {
-        		endRange = startRange + numOfChunkToWorker;
-        		return new Range(startRange * HTTPRangeGetter.CHUNK_SIZE, endRange * HTTPRangeGetter.CHUNK_SIZE - 1);
-        	}
-        	if(this.downladableParts[i] == CHUNK_WAS_NOT_DOWNLOADED) {
-        		this.downladableParts[i] = CHUNK_IN_PROCESS_OF_DOWNLOAD;
-        		if(!startCounting) {
-        			startRange = (long) i;
-        			startCounting = true;
-        		}
-        		numOfChunkToWorker++;
-        	}
-        }
-        if(startRange != null) {
-    		endRange = (long) this.fullSize - 1;
-    		return new Range(startRange * HTTPRangeGetter.CHUNK_SIZE, endRange);
-        }
-        return null;
+    	Range range = this.downladableParts.claim(this.maxRangeSize);
+    	if (range != null || this.sharedClaims == null) {
+    		return range;
+    	}
+    	try {
+    		Range leased = this.sharedClaims.claim(this.maxRangeSize);
+    		if (leased == null) {
+    			return null;
+    		}
+    		this.downladableParts.markIf(leased.getStart(), leased.getEnd(), CHUNK_CLAIMED_ELSEWHERE, CHUNK_WAS_NOT_DOWNLOADED);
+    	} catch (IOException e) {
+    		System.err.println("Failed to claim from the claim table: " + e.getMessage());
+    		return null;
+    	}
+    	return this.downladableParts.claim(this.maxRangeSize);
     }
 
     String getUrl() {
         return url;
     }
     
-    byte[] getDownladableParts() {
+    RangeIndex getDownladableParts() {
     	return this.downladableParts;
     }
     
-    AtomicInteger getSizeWasDownloaded() {
-    	return this.sizeWasDownloaded;
+    long getSizeWasDownloaded() {
+    	return this.downladableParts.getDownloadedBytes();
     }
     
-    int getFullSize() {
+    /**
+     * @return the CRC32C of the whole file, assembled from the checksums of its ranges, or null if the file
+     *         was not completely downloaded
+     */
+    Integer getFileChecksum() {
+    	if (this.sharedClaims != null) {
+    		try {
+    			return this.sharedClaims.getFileChecksum();
+    		} catch (IOException e) {
+    			return null;
+    		}
+    	}
+    	return this.checksums.getFileChecksum(this.fullSize);
+    }
+
+    long getFullSize() {
     	return this.fullSize;
     }
     
     int getInPrecentageHowMuchDownloaded() {
-    	return (int) ((this.sizeWasDownloaded.get() / (this.fullSize + 0.0)) * 100);
+    	long downloaded = getSizeWasDownloaded();
+    	if (this.sharedClaims != null) {
+    		try {
+    			// What all the participants downloaded
+    			downloaded = Math.max(downloaded, this.sharedClaims.getDoneBytes());
+    		} catch (IOException e) {
+    			// Only what this process downloaded then
+    		}
+    	}
+    	return (int) ((downloaded / (this.fullSize + 0.0)) * 100);
     }
 }
@@ -0,0 +1,94 @@
+/**
+ * Decides when the FileWriter forces written chunks to the storage device.
+ *
+ * Only ranges that were forced to the device are marked as downloaded in the metadata, so every policy keeps
+ * the resume guarantees; they differ in how many writes share the cost of one sync:
+ *
+ * - chunk: sync after every chunk
+ * - group:BYTES:MILLIS: sync once BYTES bytes are pending or MILLIS milliseconds passed since the last sync
+ * - end: sync only once the whole file was written
+ */
+class DurabilityPolicy {
+    enum Mode { PER_CHUNK, GROUP_COMMIT, AT_END }
+
+    static final long DEFAULT_GROUP_BYTES = 4 * 1024 * 1024;
+    static final long DEFAULT_GROUP_MILLIS = 1000;
+
+    private final Mode mode;
+    private final long maxPendingBytes;
+    private final long maxPendingMillis;
+
+    private DurabilityPolicy(Mode mode, long maxPendingBytes, long maxPendingMillis) {
+        this.mode = mode;
+        this.maxPendingBytes = maxPendingBytes;
+        this.maxPendingMillis = maxPendingMillis;
+    }
+
+    static DurabilityPolicy perChunk() {
+        return new DurabilityPolicy(Mode.PER_CHUNK, 0, 0);
+    }
+
+    static DurabilityPolicy groupCommit(long maxPendingBytes, long maxPendingMillis) {
+        return new DurabilityPolicy(Mode.GROUP_COMMIT, maxPendingBytes, maxPendingMillis);
+    }
+
+    static DurabilityPolicy atEnd() {
+        return new DurabilityPolicy(Mode.AT_END, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Parses "chunk", "end" or "group[:BYTES[:MILLIS]]". A null spec means "chunk".
+     */
+    static DurabilityPolicy parse(String spec) {
+        if (spec == null || spec.equals("chunk")) {
+            return perChunk();
+        }
+        if (spec.equals("end")) {
+            return atEnd();
+        }
+        String[] parts = spec.split(":");
+        if (!parts[0].equals("group") || parts.length > 3) {
+            throw new IllegalArgumentException("Unknown durability policy: " + spec);
+        }
+        long bytes = parts.length >= 2 ? Long.parseLong(parts[1]) : DEFAULT_GROUP_BYTES;
+        long millis = parts.length == 3 ? Long.parseLong(parts[2]) : DEFAULT_GROUP_MILLIS;
+        return groupCommit(bytes, millis);
+    }
+
+    /**
+     * @return true if the pending writes should be synced now
+     */
+    boolean shouldSync(long pendingBytes, long millisSinceLastSync) {
+        switch (this.mode) {
+            case PER_CHUNK:
+                return pendingBytes > 0;
+            case GROUP_COMMIT:
+                return pendingBytes >= this.maxPendingBytes || (pendingBytes > 0 && millisSinceLastSync >= this.maxPendingMillis);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return how long pending writes may wait for more chunks before a sync is due, or Long.MAX_VALUE
+     */
+    long getMaxPendingMillis() {
+        return this.mode == Mode.GROUP_COMMIT ? this.maxPendingMillis : Long.MAX_VALUE;
+    }
+
+    Mode getMode() {
+        return this.mode;
+    }
+
+    @Override
+    public String toString() {
+        switch (this.mode) {
+            case PER_CHUNK:
+                return "chunk";
+            case GROUP_COMMIT:
+                return "group:" + this.maxPendingBytes + ":" + this.maxPendingMillis;
+            default:
+                return "end";
+        }
+    }
+}
@@ -1,63 +1,207 @@
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.concurrent.BlockingQueue;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * This class takes chunks from the queue, writes them to disk and updates the file's metadata.
+ * Writes the chunks of one download to disk and updates the file's metadata.
  *
- * NOTE: make sure that the file interface you choose writes every update to the file's content or metadata
- *       synchronously to the underlying storage device.
+ * Every HTTPRangeGetter writes its own chunks with write(), concurrently with the others: the chunks go straight to
+ * the OutputFile (positional FileChannel writes or memory-mapped windows) at their offsets, which never overlap.
+ * The written ranges are then published on a lock-free queue with publish(). The FileWriter's own thread is only
+ * the committer: it drains the published ranges, forces them to the storage device according to the
+ * DurabilityPolicy, records them in the metadata and prints the progress, none of which is on the path of the data.
+ *
+ * With a StreamingOutput, every chunk is also offered to the stream before it is written, and the chunks it did not
+ * buffer are reported to it once they are on disk.
+ *
+ * NOTE: a range is added to the metadata only after it was forced, so the metadata never claims data that could
+ *       be lost in a crash. Every range is published after it was written, so forcing the file after draining
+ *       the queue covers all the drained ranges.
  */
 public class FileWriter implements Runnable {
 
-    private final BlockingQueue<Chunk> chunkQueue;
     private DownloadableMetadata downloadableMetadata;
+    private final DurabilityPolicy durabilityPolicy;
+    private final BufferPool bufferPool;
+    private final OutputFile output;
+    // Written but not yet drained ranges and their checksums, in the order they were written
+    private final ConcurrentLinkedQueue<ChecksumIndex.Record> writtenRanges = new ConcurrentLinkedQueue<>();
+    private final AtomicLong unsyncedBytes = new AtomicLong();
+    private final AtomicLong writtenBytes;
+    // Drained but not yet synced ranges, coalesced with their checksums. Used by the committer thread only
+    private ChecksumIndex pendingRanges = new ChecksumIndex();
+    private long pendingBytes;
+    private int precentageDownloaded;
+    private final String progressLabel;
+    private final DownloadMetrics metrics;
+    private volatile Thread committer;
+    private volatile StreamingOutput stream;
+    private volatile boolean isFinished;
 
-    FileWriter(DownloadableMetadata downloadableMetadata, BlockingQueue<Chunk> chunkQueue) {
-        this.chunkQueue = chunkQueue;
+    /**
+     * Opens the output file, so the getters can write as soon as they start.
+     */
+    FileWriter(DownloadableMetadata downloadableMetadata, DurabilityPolicy durabilityPolicy, BufferPool bufferPool, String progressLabel, OutputFile.Mode outputMode, DownloadMetrics metrics) throws IOException {
         this.downloadableMetadata = downloadableMetadata;
+        this.durabilityPolicy = durabilityPolicy;
+        this.bufferPool = bufferPool;
+        this.progressLabel = progressLabel;
+        this.metrics = metrics;
+        metrics.setUnsyncedBytes(this.unsyncedBytes::get);
+        this.writtenBytes = new AtomicLong(downloadableMetadata.getSizeWasDownloaded());
+        File outputFile = new File("./" + downloadableMetadata.getFilename());
+        this.output = OutputFile.open(outputFile, downloadableMetadata.getFullSize(), outputMode);
+    }
+
+    /**
+     * Sets the stream to offer the written chunks to, before the getters start.
+     */
+    void setStream(StreamingOutput stream) {
+    	this.stream = stream;
+    }
+
+    /**
+     * Writes the chunk and releases its buffer. Called by the getters, concurrently.
+     *
+     * @throws UncheckedIOException if the file could not be written, which the getter must not retry as a failed
+     *         request
+     */
+    void write(Chunk chunk) {
+    	ByteBuffer data = chunk.getData();
+    	StreamingOutput stream = this.stream;
+    	boolean buffered = stream != null && stream.offer(data.duplicate(), chunk.getOffset());
+    	long writeStarted = System.nanoTime();
+    	try {
+    		this.output.write(data, chunk.getOffset());
+    		this.metrics.writeLatency.recordSince(writeStarted);
+    	} catch (IOException e) {
+    		throw new UncheckedIOException("Failed to write to the file: " + e.getMessage(), e);
+    	} finally {
+    		this.bufferPool.release(data);
+    	}
+    	if (!buffered && stream != null) {
+    		stream.written(chunk.getOffset(), chunk.getSize_in_bytes());
+    	}
+    }
+
+    /**
+     * Hands a written range to the committer. The getters publish their chunks in ranges of the tracking
+     * granularity rather than one by one.
+     *
+     * @param checksum CRC32C of the data of the range
+     */
+    void publish(Range range, int checksum) {
+    	long size = range.getLength();
+    	this.writtenRanges.offer(new ChecksumIndex.Record(range.getStart(), range.getEnd(), checksum));
+    	long unsynced = this.unsyncedBytes.addAndGet(size);
+    	boolean allWritten = this.writtenBytes.addAndGet(size) >= this.downloadableMetadata.getFullSize();
+    	if (allWritten || this.durabilityPolicy.shouldSync(unsynced, 0)) {
+    		LockSupport.unpark(this.committer);
+    	}
     }
 
-    private void writeChunks() throws InterruptedException, IOException {
-		File outputFile = new File("./" + this.downloadableMetadata.getFilename());
-		RandomAccessFile randomAccessFileOutput = new RandomAccessFile(outputFile, "rws");
-		int precentageDownloaded = 0;
+    /**
+     * Tells the committer that no more chunks will be written, e.g. after all the workers stopped.
+     */
+    void finish() {
+    	this.isFinished = true;
+    	LockSupport.unpark(this.committer);
+    }
+
+    private void commitChunks() throws IOException {
+    	this.committer = Thread.currentThread();
+		long lastSync = System.currentTimeMillis();
         while(!this.downloadableMetadata.isCompleted()) {
-			Chunk availableChunk = this.chunkQueue.take();
+        	boolean finished = this.isFinished;
+        	drain();
+        	if (this.pendingBytes == 0 && finished) {
+        		break;
+        	}
         	try {
-				randomAccessFileOutput.seek(availableChunk.getOffset());
-				randomAccessFileOutput.write(availableChunk.getData(), 0, availableChunk.getSize_in_bytes());
-				this.downloadableMetadata.addRange(new Range(availableChunk.getOffset(), availableChunk.getOffset() + availableChunk.getSize_in_bytes() - 1));
-				this.downloadableMetadata.saveMetadataFile();
-				int currentPrecentage = this.downloadableMetadata.getInPrecentageHowMuchDownloaded();
-				if (currentPrecentage > precentageDownloaded) {
-        			precentageDownloaded = currentPrecentage;
-        			System.err.println("Downloaded " + precentageDownloaded + "%");
-				}
+        		boolean allWritten = this.downloadableMetadata.getSizeWasDownloaded() + this.pendingBytes >= this.downloadableMetadata.getFullSize();
+        		if (allWritten || finished || this.durabilityPolicy.shouldSync(this.pendingBytes, System.currentTimeMillis() - lastSync)) {
+        			commit();
+        			lastSync = System.currentTimeMillis();
+        			continue;
+        		}
     		} catch (IOException e) {
-    			this.downloadableMetadata.changeRangeToNotDownloaded(new Range(availableChunk.getOffset(), availableChunk.getOffset() + availableChunk.getSize_in_bytes() - 1));
-    			if(randomAccessFileOutput != null) {
-        			randomAccessFileOutput.close();
+    			for (ChecksumIndex.Record pendingRange : this.pendingRanges.getRecords()) {
+        			this.downloadableMetadata.changeRangeToNotDownloaded(new Range(pendingRange.start, pendingRange.end));
     			}
-    			System.err.println("Failed to write to the file");
-    			System.err.println("Download failed");
-    			System.exit(1); // 1 represents status code of failure
+    			try {
+    				this.output.close();
+    			} catch (IOException closeFailure) {
+    				e.addSuppressed(closeFailure);
+    			}
+    			throw e;
     		}
+        	if (this.writtenRanges.isEmpty()) {
+        		long maxPendingMillis = this.durabilityPolicy.getMaxPendingMillis();
+        		if (this.pendingBytes > 0 && maxPendingMillis != Long.MAX_VALUE) {
+        			long waitMillis = maxPendingMillis - (System.currentTimeMillis() - lastSync);
+        			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.max(waitMillis, 0)));
+        		} else {
+        			LockSupport.park(this);
+        		}
+        	}
         }
-        if (randomAccessFileOutput != null) {
-        	randomAccessFileOutput.close();
-        }
+        this.output.close();
+    }
+
+    /**
+     * Moves the published ranges to the pending ranges.
+     */
+    private void drain() {
+    	ChecksumIndex.Record range;
+    	while ((range = this.writtenRanges.poll()) != null) {
+    		this.unsyncedBytes.addAndGet(-range.getLength());
+    		this.pendingBytes += range.getLength();
+    		this.pendingRanges.add(range.start, range.end, range.checksum);
+    	}
+    }
+
+    /**
+     * Forces the pending writes to the storage device, and only then records them in the metadata.
+     */
+    private void commit() throws IOException {
+    	if (this.pendingRanges.isEmpty()) {
+    		return;
+    	}
+    	long syncStarted = System.nanoTime();
+    	this.output.force();
+    	this.metrics.fsyncLatency.recordSince(syncStarted);
+    	long saveStarted = System.nanoTime();
+    	for (ChecksumIndex.Record pendingRange : this.pendingRanges.getRecords()) {
+    		this.downloadableMetadata.addRange(new Range(pendingRange.start, pendingRange.end), pendingRange.checksum);
+    	}
+    	this.downloadableMetadata.saveMetadataFile();
+    	this.metrics.metadataSaveLatency.recordSince(saveStarted);
+    	this.pendingRanges = new ChecksumIndex();
+    	this.pendingBytes = 0;
+		int currentPrecentage = this.downloadableMetadata.getInPrecentageHowMuchDownloaded();
+		if (currentPrecentage > this.precentageDownloaded) {
+			this.precentageDownloaded = currentPrecentage;
+			System.err.println(this.progressLabel + "Downloaded " + this.precentageDownloaded + "%");
+		}
     }
 
+    /**
+     * Runs the committer until finish() was called and every published range was committed.
+     *
+     * @throws UncheckedIOException if the file could not be written, after which the pending ranges are missing
+     *         again and the file is closed
+     */
     @Override
     public void run() {
         try {
-            this.writeChunks();
-        } catch (InterruptedException | IOException e) {
-			System.err.println("Failed to write to the file");
-			System.err.println("Download failed");
-			System.exit(1); // 1 represents status code of failure
+            this.commitChunks();
+        } catch (IOException e) {
+			throw new UncheckedIOException("Failed to write to the file: " + e.getMessage(), e);
         }
     }
 }
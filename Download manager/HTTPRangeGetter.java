@@ -1,77 +1,246 @@
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.concurrent.BlockingQueue;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
 
 /**
- * A runnable class which downloads a given url.
- * It reads CHUNK_SIZE at a time and writs it into a BlockingQueue.
+ * A runnable class which downloads a given range from one Mirror, over a connection of the shared HttpTransport.
+ * It reads into buffers taken from the BufferPool, as much at a time as the connection's ReadSize allows, and
+ * writes them to the file itself, through the download's FileWriter. The written bytes are published to the
+ * FileWriter and the RangeScheduler once per trackingGranularity bytes, instead of once per read, together with
+ * their CRC32C, which is computed read by read while the data is still in the buffer.
  * It supports downloading a range of data, and limiting the download rate using a token bucket.
+ * The end of the range may be cut short by the RangeScheduler while downloading, in which case the getter stops
+ * reading once it reaches the new end.
+ * Every publish also reports its bytes and their time to the MirrorSet. If the mirror is dropped meanwhile, the
+ * getter stops before its next read and hands the rest of the range back to the scheduler for another mirror.
+ * A failed request is retried from the first undelivered byte, for up to MAX_ATTEMPTS attempts in all, after an
+ * exponential backoff with jitter. A range that failed every attempt goes back to the scheduler, unless it
+ * exhausted the failure budget of the download (see RangeScheduler): the getter then fails the download. In the end-game the range may be hedged: the getter claims every read before writing it,
+ * and stops as soon as it lost the range to the rival getter.
+ * Requests carry the mirror's validator in If-Range; a mirror whose file changed fails the whole download, without
+ * retries. The first range of a download is read from the body that was opened with the first request.
+ * The getter of a cancelled download stops before its next read, or as soon as its connection is closed. A failed
+ * write is not retried: it fails the download.
  */
 public class HTTPRangeGetter implements Runnable {
-    static final int CHUNK_SIZE = 4096;
-    private static final int CONNECT_TIMEOUT = 500;
-    private static final int READ_TIMEOUT = 2000;
-    private final String url;
-    private final Range range;
-    private final BlockingQueue<Chunk> outQueue;
+    static final int MAX_ATTEMPTS = 4;
+    static final long BASE_BACKOFF = 100;
+    static final long MAX_BACKOFF = 2000;
+    // Bytes copied at a time from the response body into the direct buffer
+    private static final int TRANSFER_SIZE = 64 * 1024;
+
+    private final Mirror mirror;
+    private final MirrorSet mirrors;
+    private final String progressLabel;
+    private final RangeAssignment assignment;
+    private final FileWriter fileWriter;
     private TokenBucket tokenBucket;
-    private DownloadableMetadata metaData;
+    private final RangeScheduler scheduler;
+    private final BufferPool bufferPool;
+    private final HttpTransport transport;
+    private final ReadSize readSize;
+    private final long trackingGranularity;
+    private final DownloadMetrics metrics;
+    private final int connection;
+    private final CRC32C readChecksum = new CRC32C();
+    private final byte[] transfer = new byte[TRANSFER_SIZE];
+    // Checksum of the written bytes that were not published yet
+    private int unpublishedChecksum;
+    // Time of the last publish, for the throughput of the mirror
+    private long publishedNanos;
 
     HTTPRangeGetter(
-            String url,
-            Range range,
-            BlockingQueue<Chunk> outQueue,
+            Mirror mirror,
+            MirrorSet mirrors,
+            String progressLabel,
+            RangeAssignment assignment,
+            FileWriter fileWriter,
             TokenBucket tokenBucket, 
-            DownloadableMetadata metaData) {
-        this.url = url;
-        this.range = range;
-        this.outQueue = outQueue;
+            RangeScheduler scheduler,
+            BufferPool bufferPool,
+            HttpTransport transport,
+            ReadSize readSize,
+            long trackingGranularity,
+            DownloadMetrics metrics,
+            int connection) {
+        this.mirror = mirror;
+        this.mirrors = mirrors;
+        this.progressLabel = progressLabel;
+        this.assignment = assignment;
+        this.fileWriter = fileWriter;
         this.tokenBucket = tokenBucket;
-        this.metaData = metaData;
+        this.scheduler = scheduler;
+        this.bufferPool = bufferPool;
+        this.transport = transport;
+        this.readSize = readSize;
+        this.trackingGranularity = trackingGranularity;
+        this.metrics = metrics;
+        this.connection = connection;
+    }
+
+    /**
+     * Downloads the range from its first undelivered byte.
+     *
+     * @return false if the mirror was dropped or the range was lost to a rival before the whole range was read
+     */
+    private boolean downloadRange() throws InterruptedException, IOException {
+        long offset = this.assignment.getPosition();
+        // Start of the written bytes that were not published yet
+        long published = offset;
+        InputStream body = null;
+        ByteBuffer data = null;
+        try {
+            body = this.assignment.takeOpenedBody();
+            if (body == null) {
+                body = this.transport.openRange(this.mirror.getUrl(), offset, this.assignment.getEnd(), this.mirror.getValidator());
+            }
+            this.assignment.setConnection(body);
+            long readStarted = System.nanoTime();
+            this.publishedNanos = readStarted;
+            int size = this.assignment.reserve(this.readSize.get());
+            while(size > 0) {
+                if (this.mirror.isDropped() || this.scheduler.isCancelled()) {
+                    // The reserved chunk is undelivered, so it goes back with the rest of the range
+                    return false;
+                }
+                long waitStarted = System.nanoTime();
+                data = this.bufferPool.acquire(size);
+                long bufferAcquired = System.nanoTime();
+                this.metrics.bufferWait.record(bufferAcquired - waitStarted);
+                this.tokenBucket.take(size);
+                this.metrics.tokenWait.recordSince(bufferAcquired);
+                while(data.hasRemaining()) {
+                    if (read(body, data) < 0) {
+                        throw new EOFException("The server closed the connection before the end of the range");
+                    }
+                }
+                data.flip();
+                this.metrics.received(this.connection, size);
+                if (!this.assignment.claim()) {
+                    return false;
+                }
+                this.readChecksum.reset();
+                this.readChecksum.update(data);
+                data.rewind();
+                ByteBuffer written = data;
+                data = null;
+                this.fileWriter.write(new Chunk(written, offset, size));
+                this.unpublishedChecksum = Crc32c.combine(this.unpublishedChecksum, (int) this.readChecksum.getValue(), size);
+                offset += size;
+                if (offset - published >= this.trackingGranularity) {
+                    boolean delivered = publish(published, offset);
+                    published = offset;
+                    if (!delivered) {
+                        return false;
+                    }
+                }
+                long now = System.nanoTime();
+                this.readSize.update(size, now - readStarted);
+                readStarted = now;
+                size = this.assignment.reserve(this.readSize.get());
+            }
+            return true;
+        } finally {
+            // Written bytes are kept even if the rest of the range failed
+            if (offset > published) {
+                publish(published, offset);
+            }
+            if(data != null) {
+                this.bufferPool.release(data);
+            }
+            if(body != null) {
+                // Closing an unfinished body gives up its connection, a finished one returns it to the pool
+                body.close();
+            }
+        }
     }
 
-	private void downloadRange() throws InterruptedException, IOException {
-		int numOfChunksToWorker = (int) Math.ceil(this.range.getLength().intValue() / (CHUNK_SIZE + 0.0));
-		int chunksThatWasDelivered = 0;
-		HttpURLConnection connection = null;
-		DataInputStream dataInputStream = null;
-		try {
-	    	connection = (HttpURLConnection) new URL(this.url).openConnection();
-	    	connection.setRequestMethod("GET");
-	    	connection.setConnectTimeout(CONNECT_TIMEOUT);
-	    	connection.setReadTimeout(READ_TIMEOUT);
-	    	connection.setRequestProperty("Range", "bytes=" + this.range.getStart() + "-" + this.range.getEnd());
-	    	connection.connect();
-	    	dataInputStream = new DataInputStream(connection.getInputStream());
-	    	while(chunksThatWasDelivered < numOfChunksToWorker) {
-	        	int size = CHUNK_SIZE;
-	        	if(chunksThatWasDelivered == numOfChunksToWorker - 1) {
-	        		size = (int) this.range.getLength().longValue() - chunksThatWasDelivered * CHUNK_SIZE;
-	        	}
-	        	byte[] data = new byte[size];
-	        	this.tokenBucket.take(size);
-	        	dataInputStream.readFully(data, 0, size);
-	        	this.outQueue.put(new Chunk(data, this.range.getStart() + chunksThatWasDelivered * CHUNK_SIZE, size));
-	        	chunksThatWasDelivered++;
-	    	}
-		} finally {
-			if(dataInputStream != null) {
-		    	dataInputStream.close();
-			}
-			if(connection != null) {
-		    	connection.disconnect();
-			}
-		}
+    /**
+     * Reads from the body into the rest of the buffer, through the transfer array. Channels.newChannel() copies the
+     * same way, but holds a monitor during the read, which pins a virtual thread to its carrier thread.
+     *
+     * @return the number of bytes read, or -1 at the end of the body
+     */
+    private int read(InputStream body, ByteBuffer data) throws IOException {
+        int size = body.read(this.transfer, 0, Math.min(data.remaining(), this.transfer.length));
+        if (size > 0) {
+            data.put(this.transfer, 0, size);
+        }
+        return size;
+    }
+
+    /**
+     * @return false if the range was lost to a rival, which publishes the bytes instead
+     */
+    private boolean publish(long start, long end) {
+        int checksum = this.unpublishedChecksum;
+        this.unpublishedChecksum = 0;
+        if (!this.scheduler.delivered(this.assignment, end - start)) {
+            return false;
+        }
+        this.fileWriter.publish(new Range(start, end - 1), checksum);
+        long now = System.nanoTime();
+        this.mirrors.delivered(this.mirror, end - start, now - this.publishedNanos, this.progressLabel);
+        this.publishedNanos = now;
+        return true;
     }
 
     @Override
     public void run() {
         try {
-            this.downloadRange();
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    if (this.downloadRange()) {
+                        this.scheduler.finished(this.assignment);
+                    } else {
+                        this.scheduler.abandoned(this.assignment);
+                    }
+                    this.mirrors.finished(this.mirror, true, this.progressLabel);
+                    return;
+                } catch (HttpTransport.FileChangedException e) {
+                    System.err.println(this.progressLabel + e.getMessage());
+                    this.scheduler.fileChanged(this.assignment);
+                    this.mirrors.finished(this.mirror, true, this.progressLabel);
+                    return;
+                } catch (IOException e) {
+                    if (this.assignment.isLost() || this.mirror.isDropped() || this.scheduler.isCancelled()) {
+                        // The rival or the cancelled download closed the connection, or another mirror gets the range
+                        this.scheduler.abandoned(this.assignment);
+                        this.mirrors.finished(this.mirror, true, this.progressLabel);
+                        return;
+                    }
+                    if (attempt == MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+                this.scheduler.retrying(this.assignment);
+                Thread.sleep(backoff(attempt));
+            }
         } catch (IOException | InterruptedException e) {
-        	this.metaData.changeRangeToNotDownloaded(this.range);
+            boolean withinBudget = this.scheduler.failed(this.assignment);
+            this.mirrors.finished(this.mirror, false, this.progressLabel);
+            if (!withinBudget) {
+                throw new UncheckedIOException("Giving up, too many ranges failed in a row, the last one with " + e,
+                        e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        } catch (UncheckedIOException e) {
+            // The file could not be written, which fails the download rather than the mirror
+            this.scheduler.abandoned(this.assignment);
+            this.mirrors.finished(this.mirror, true, this.progressLabel);
+            throw e;
         }
     }
+
+    /**
+     * @return the milliseconds to wait before the next attempt: BASE_BACKOFF doubled per failed attempt, up to
+     *         MAX_BACKOFF, of which a random half so that failed connections do not retry all at once
+     */
+    static long backoff(int failedAttempts) {
+        long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failedAttempts - 1, 20));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
 }
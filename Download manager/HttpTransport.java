@@ -0,0 +1,388 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Issues the HTTP requests of a download over one shared HttpClient.
+ *
+ * The client keeps connections alive between ranges, so a range only pays for a new TCP/TLS handshake when no
+ * idle connection is left. Servers that negotiate HTTP/2 get all the range requests multiplexed as streams over
+ * a single connection.
+ *
+ * Range requests may carry a validator of the file (its ETag, or its Last-Modified date) in If-Range, so a server
+ * whose file changed answers with the whole new file (200) instead of the range, and the change is detected.
+ *
+ * HttpClient has no read timeout, so a watchdog closes the range streams that stall. A stall is judged by the
+ * throughput of the stream rather than by a fixed timeout: a stream stalls when, for STALL_TIME, its reads receive
+ * less than STALL_FRACTION of the throughput it had until then. A stream that did not receive anything yet has no
+ * throughput to compare with, and stalls when its read is blocked for READ_TIMEOUT.
+ */
+class HttpTransport {
+    static final int CONNECT_TIMEOUT = 500;
+    static final int READ_TIMEOUT = 2000;
+    static final long STALL_TIME = TimeUnit.SECONDS.toNanos(1);
+    static final double STALL_FRACTION = 0.1;
+    private static final long WATCHDOG_PERIOD = 250;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+
+    private final HttpClient client;
+    private final ScheduledExecutorService watchdog;
+    private final Set<RangeStream> openStreams = ConcurrentHashMap.newKeySet();
+    private final Set<String> http2Origins = ConcurrentHashMap.newKeySet();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder http2Requests = new LongAdder();
+    private final LongAdder abortedHttp1Streams = new LongAdder();
+    private final AtomicInteger activeHttp1Streams = new AtomicInteger();
+    private final AtomicInteger peakHttp1Streams = new AtomicInteger();
+
+    /**
+     * @param preferHttp2 negotiate HTTP/2 where the server supports it, otherwise always use HTTP/1.1
+     */
+    HttpTransport(boolean preferHttp2) {
+        this.client = HttpClient.newBuilder()
+                .version(preferHttp2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "http-read-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.watchdog.scheduleWithFixedDelay(this::closeStalledStreams, WATCHDOG_PERIOD, WATCHDOG_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Asks the server for the size and the validators of the file with a HEAD request.
+     */
+    FileInfo getFileInfo(String url) throws IOException, InterruptedException {
+        HttpResponse<Void> response = send(newRequest(url).method("HEAD", HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IOException("HEAD " + url + " returned " + response.statusCode());
+        }
+        long size = response.headers().firstValueAsLong("Content-Length")
+                .orElseThrow(() -> new IOException("The server did not send the size of " + url));
+        return new FileInfo(size, response);
+    }
+
+    /**
+     * Requests a whole small resource, e.g. the block manifest of a file.
+     *
+     * @return the body of the response, which the caller must close
+     */
+    InputStream get(String url) throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = send(newRequest(url).GET().build(), HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() != 200) {
+            response.body().close();
+            throw new IOException("GET " + url + " returned " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    /**
+     * Requests the bytes [start, end] of the file.
+     *
+     * @param validator sent as If-Range, or null
+     * @return the body of the response, which the caller must close
+     * @throws FileChangedException if the server answered with the whole file because it does not match validator
+     */
+    InputStream openRange(String url, long start, long end, String validator) throws IOException, InterruptedException {
+        RangeResponse response = requestRange(url, start, end, validator);
+        if (!response.partial) {
+            response.body.close();
+            if (validator != null) {
+                throw new FileChangedException(url);
+            }
+            throw new IOException("The server of " + url + " does not support range requests");
+        }
+        return response.body;
+    }
+
+    /**
+     * Requests the bytes [start, end] of the file, and also accepts the whole file (200) as the answer. Used as the
+     * first request of a download, which learns the size and the validators of the file from the response.
+     * The end of a partial response is at most the requested end, even if the server sends more.
+     *
+     * @param validator sent as If-Range, or null
+     */
+    RangeResponse requestRange(String url, long start, long end, String validator) throws IOException, InterruptedException {
+        HttpRequest.Builder builder = newRequest(url).header("Range", "bytes=" + start + "-" + end).GET();
+        if (validator != null) {
+            builder.header("If-Range", validator);
+        }
+        HttpResponse<InputStream> response = send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        int status = response.statusCode();
+        if (status == 416) {
+            // A range beyond the end of the file, e.g. of an empty file
+            response.body().close();
+            Matcher matcher = CONTENT_RANGE.matcher(response.headers().firstValue("Content-Range").orElse(""));
+            if (!matcher.matches() || matcher.group(3).equals("*")) {
+                throw new IOException("Range request for " + url + " returned 416");
+            }
+            return new RangeResponse(null, new FileInfo(Long.parseLong(matcher.group(3)), response), true, start, start - 1);
+        }
+        if (status != 206 && status != 200) {
+            response.body().close();
+            throw new IOException("Range request for " + url + " returned " + status);
+        }
+        boolean partial = status == 206;
+        long size = -1;
+        long bodyLength;
+        if (partial) {
+            Matcher matcher = CONTENT_RANGE.matcher(response.headers().firstValue("Content-Range").orElse(""));
+            if (!matcher.matches() || matcher.group(1) == null || Long.parseLong(matcher.group(1)) != start) {
+                response.body().close();
+                throw new IOException("Range request for " + url + " returned an unexpected Content-Range");
+            }
+            long bodyEnd = Long.parseLong(matcher.group(2));
+            bodyLength = bodyEnd - start + 1;
+            // A server may send more than was asked for, the bytes past the requested end belong to other ranges
+            end = Math.min(bodyEnd, end);
+            if (!matcher.group(3).equals("*")) {
+                size = Long.parseLong(matcher.group(3));
+            }
+        } else {
+            start = 0;
+            size = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+            end = size - 1;
+            bodyLength = size;
+        }
+        return new RangeResponse(open(response, bodyLength), new FileInfo(size, response), partial, start, end);
+    }
+
+    private InputStream open(HttpResponse<InputStream> response, long length) {
+        boolean http2 = response.version() == HttpClient.Version.HTTP_2;
+        if (http2) {
+            this.http2Requests.increment();
+            this.http2Origins.add(response.uri().getScheme() + "://" + response.uri().getAuthority());
+        } else {
+            this.peakHttp1Streams.accumulateAndGet(this.activeHttp1Streams.incrementAndGet(), Math::max);
+        }
+        RangeStream stream = new RangeStream(response.body(), http2, length);
+        this.openStreams.add(stream);
+        return stream;
+    }
+
+    /**
+     * @return a one line summary of the requests and the (estimated) connections they used
+     */
+    String getReport() {
+        long total = this.requests.sum();
+        long http2 = this.http2Requests.sum();
+        // HttpClient does not expose its connections: an HTTP/2 origin uses one connection, and an HTTP/1.1
+        // connection is reused unless its stream was abandoned before the end of the body
+        long connections = this.http2Origins.size() + this.peakHttp1Streams.get() + this.abortedHttp1Streams.sum();
+        return String.format("%d requests (%d over HTTP/2, %d over HTTP/1.1) on about %d connections, %.1f requests per connection",
+                total, http2, total - http2, connections, total / (double) Math.max(connections, 1));
+    }
+
+    void close() {
+        this.watchdog.shutdownNow();
+    }
+
+    private HttpRequest.Builder newRequest(String url) throws IOException {
+        try {
+            return HttpRequest.newBuilder(new URI(url)).timeout(Duration.ofMillis(CONNECT_TIMEOUT + READ_TIMEOUT));
+        } catch (Exception e) {
+            throw new IOException("Invalid URL " + url, e);
+        }
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        this.requests.increment();
+        return this.client.send(request, bodyHandler);
+    }
+
+    private void closeStalledStreams() {
+        long now = System.nanoTime();
+        for (RangeStream stream : this.openStreams) {
+            if (stream.isStalled(now)) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // The reader fails with an EOF either way
+                }
+            }
+        }
+    }
+
+    /**
+     * What a server tells about a file: its size (-1 if unknown), and its ETag and Last-Modified date, or null.
+     */
+    static class FileInfo {
+        final long size;
+        final String etag;
+        final String lastModified;
+
+        FileInfo(long size, String etag, String lastModified) {
+            this.size = size;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        FileInfo(long size, HttpResponse<?> response) {
+            this(size, response.headers().firstValue("ETag").orElse(null), response.headers().firstValue("Last-Modified").orElse(null));
+        }
+
+        /**
+         * @return the value for If-Range: the ETag if it is a strong one, else the Last-Modified date, or null
+         */
+        String getValidator() {
+            if (this.etag != null && !this.etag.startsWith("W/")) {
+                return this.etag;
+            }
+            return this.lastModified;
+        }
+    }
+
+    /**
+     * The answer to a range request: the requested range [start, end] (206), or the whole file (200).
+     */
+    static class RangeResponse {
+        // Null if there is no body to read
+        final InputStream body;
+        final FileInfo info;
+        final boolean partial;
+        final long start;
+        final long end;
+
+        RangeResponse(InputStream body, FileInfo info, boolean partial, long start, long end) {
+            this.body = body;
+            this.info = info;
+            this.partial = partial;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Thrown when a server no longer has the file a download started with.
+     */
+    static class FileChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FileChangedException(String url) {
+            super("The file at " + url + " changed on the server");
+        }
+    }
+
+    /**
+     * The body of a range response, tracking since when a read is blocked and the throughput of its reads.
+     */
+    private class RangeStream extends FilterInputStream {
+        private final boolean http2;
+        private long unread;
+        // System.nanoTime() when the current read started, or 0 when no read is in progress
+        private volatile long readStartedAt;
+        private volatile long receivedBytes;
+        // Nanoseconds spent in the reads that returned
+        private volatile long readNanos;
+        private boolean closed;
+        // Watchdog state: the totals at its previous check, and since when the stream is slow (0 if it is not)
+        private long checkedBytes;
+        private long checkedNanos;
+        private long slowSince;
+
+        RangeStream(InputStream in, boolean http2, long length) {
+            super(in);
+            this.http2 = http2;
+            this.unread = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startedAt = System.nanoTime();
+            this.readStartedAt = startedAt;
+            try {
+                int data = super.read();
+                if (data >= 0) {
+                    received(1);
+                }
+                return data;
+            } finally {
+                this.readStartedAt = 0;
+                this.readNanos += System.nanoTime() - startedAt;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long startedAt = System.nanoTime();
+            this.readStartedAt = startedAt;
+            try {
+                int size = super.read(buffer, offset, length);
+                if (size > 0) {
+                    received(size);
+                }
+                return size;
+            } finally {
+                this.readStartedAt = 0;
+                this.readNanos += System.nanoTime() - startedAt;
+            }
+        }
+
+        private void received(int size) {
+            this.unread -= size;
+            this.receivedBytes += size;
+        }
+
+        /**
+         * Called by the watchdog only.
+         */
+        boolean isStalled(long now) {
+            long readStartedAt = this.readStartedAt;
+            long bytes = this.receivedBytes;
+            long nanos = this.readNanos + (readStartedAt != 0 ? now - readStartedAt : 0);
+            if (bytes == 0) {
+                return readStartedAt != 0 && now - readStartedAt > TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT);
+            }
+            long windowBytes = bytes - this.checkedBytes;
+            long windowNanos = nanos - this.checkedNanos;
+            double throughput = this.checkedNanos > 0 ? this.checkedBytes / (double) this.checkedNanos : 0;
+            this.checkedBytes = bytes;
+            this.checkedNanos = nanos;
+            // No time in reads means the reader waits for something else, e.g. for tokens of the rate limit
+            if (windowNanos <= 0 || windowBytes >= STALL_FRACTION * throughput * windowNanos) {
+                this.slowSince = 0;
+                return false;
+            }
+            if (this.slowSince == 0) {
+                this.slowSince = now;
+            }
+            return now - this.slowSince >= STALL_TIME;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+            }
+            openStreams.remove(this);
+            if (!this.http2) {
+                activeHttp1Streams.decrementAndGet();
+                if (this.unread > 0) {
+                    abortedHttp1Streams.increment();
+                }
+            }
+            super.close();
+        }
+    }
+}
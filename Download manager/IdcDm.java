@@ -1,4 +1,9 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.*;
 
 public class IdcDm {
@@ -9,97 +14,118 @@ public class IdcDm {
      * @param args command-line arguments
      */
     public static void main(String[] args) {
-        int numberOfWorkers = 1;
+        String concurrencySpec = "1";
         Long maxBytesPerSecond = null;
+        boolean batch = args.length >= 1 && args[0].equals("--batch");
+        if (batch) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
 
         if (args.length < 1 || args.length > 3) {
-            System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS] [MAX-DOWNLOAD-LIMIT]\n");
+            System.err.printf("usage:\n\tjava IdcDm URL [MAX-CONCURRENT-CONNECTIONS|auto[:CEILING]] [MAX-DOWNLOAD-LIMIT]\n");
+            System.err.printf("\tjava IdcDm --batch URL-LIST-FILE|- [MAX-CONCURRENT-CONNECTIONS|auto[:CEILING]] [MAX-DOWNLOAD-LIMIT]\n");
             System.exit(1);
         } else if (args.length >= 2) {
-            numberOfWorkers = Integer.parseInt(args[1]);
+            concurrencySpec = args[1];
             if (args.length == 3)
                 maxBytesPerSecond = Long.parseLong(args[2]);
         }
 
-        String url = args[0];
+        DownloadOptions options = null;
+        try {
+            options = DownloadOptions.fromSystemProperties(concurrencySpec, maxBytesPerSecond);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid settings: " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (batch) {
+            DownloadBatch(args[0], options);
+            return;
+        }
 
+        ConcurrencyController concurrency = options.newConcurrencyController();
         System.err.printf("Downloading");
-        if (numberOfWorkers > 1)
-            System.err.printf(" using %d connections", numberOfWorkers);
+        if (concurrency.isAdaptive())
+            System.err.printf(" using up to %d connections", concurrency.getCeiling());
+        else if (concurrency.getCeiling() > 1)
+            System.err.printf(" using %d connections", concurrency.getCeiling());
         if (maxBytesPerSecond != null)
             System.err.printf(" limited to %d Bps", maxBytesPerSecond);
         System.err.printf("...\n");
 
-        DownloadURL(url, numberOfWorkers, maxBytesPerSecond);
+        DownloadURL(args[0], options);
     }
 
     /**
-     * Initiate the file's metadata, and iterate over missing ranges. For each:
-     * 1. Setup the Queue, TokenBucket, DownloadableMetadata, FileWriter, RateLimiter, and a pool of HTTPRangeGetters
-     * 2. Join the HTTPRangeGetters, send finish marker to the Queue and terminate the TokenBucket
-     * 3. Join the FileWriter and RateLimiter
-     *
-     * Finally, print "Download succeeded/failed" and delete the metadata as needed.
+     * Download a single URL with a DownloadTask, report the HTTP connection usage and print
+     * "Download succeeded/failed".
      *
      * @param url URL to download
-     * @param numberOfWorkers number of concurrent connections
-     * @param maxBytesPerSecond limit on download bytes-per-second
+     * @param options settings of the download
      */
-    private static void DownloadURL(String url, int numberOfWorkers, Long maxBytesPerSecond) {
-    	boolean downloadSuccess = true;
-    	DownloadableMetadata metaData = null;
+    private static void DownloadURL(String url, DownloadOptions options) {
+    	MetricsReporter metricsReporter = openMetricsReporter(options);
+    	HttpTransport transport = new HttpTransport(options.preferHttp2);
+    	ExecutorService writers = options.newExecutor("committer", 1);
+    	DownloadTask task = new DownloadTask(url, 0, options, transport, options.newGlobalBucket(),
+    			new ConnectionSlots(options.newConcurrencyController().getCeiling()), writers, false, metricsReporter);
     	try {
-        	metaData = new DownloadableMetadata(url);
+    		task.setStreamConsumer(options.openStream());
     	} catch (IOException e) {
-    		downloadSuccess = false;
-    		System.err.println("Failed to create metaData object");
+    		System.err.println("Failed to open the stream: " + e.getMessage());
+    		System.exit(1);
     	}
-    	if (metaData != null && downloadSuccess) {
-    		BlockingQueue<Chunk> chunkQueue = new ArrayBlockingQueue<>(numberOfWorkers);
-        	TokenBucket tokenBucket = new TokenBucket();
-            Thread threadRateLimiter = new Thread(new RateLimiter(tokenBucket, maxBytesPerSecond));
-            threadRateLimiter.start();
-        	Thread threadFileWriter = new Thread(new FileWriter(metaData, chunkQueue));
-        	threadFileWriter.start();
-        	Thread[] pollOfThreads = new Thread[numberOfWorkers];
-        	while(!metaData.isCompleted()) {
-        		metaData.setNumOfMaxChunksToWorker(numberOfWorkers);
-            	for(int i = 0; i < numberOfWorkers; i++) {
-            		Range missinRange = metaData.getMissingRange();
-            		if (missinRange != null) {
-            			pollOfThreads[i] = new Thread(new HTTPRangeGetter(url, missinRange, chunkQueue, tokenBucket, metaData));
-            		}
-            	}
-            	for(int i = 0; i < numberOfWorkers; i++) {
-            		if (pollOfThreads[i] != null && pollOfThreads[i].getState() == Thread.State.NEW) {
-            			pollOfThreads[i].start();
-            		}
-            	}
-        		try {
-                	for(int i = 0; i < numberOfWorkers; i++) {
-                		if (pollOfThreads[i] != null) {
-                			pollOfThreads[i].join();
-                		}
-                	}
-    			} catch (InterruptedException e) {
-    				System.err.println("Failed to wait to one of the threads");
-    				downloadSuccess = false;
-    			}
-        	}
-        	tokenBucket.terminate();
-        	try {
-            	threadFileWriter.join();
-            	threadRateLimiter.join();
-        	} catch (InterruptedException e) {
-    			System.err.println("Failed to wait to one of the threads");
-    			downloadSuccess = false;
-    		}
+    	boolean downloadSuccess = task.download("");
+    	writers.shutdown();
+    	transport.close();
+    	if (metricsReporter != null) {
+    		metricsReporter.close();
     	}
+    	System.err.println("HTTP: " + transport.getReport());
     	if (downloadSuccess) {
-    		metaData.delete();
     		System.err.println("Download succeeded");
     	} else {
     		System.err.println("Download failed");
+    		System.exit(1);
+    	}
+    }
+
+    /**
+     * Download all the URLs of a list with a BatchDownloader.
+     *
+     * @param listFile file with one URL per line, or "-" for the standard input
+     * @param options settings shared by the downloads
+     */
+    private static void DownloadBatch(String listFile, DownloadOptions options) {
+    	List<BatchDownloader.Entry> entries;
+    	try (BufferedReader reader = listFile.equals("-")
+    			? new BufferedReader(new InputStreamReader(System.in))
+    			: new BufferedReader(new FileReader(listFile))) {
+    		entries = BatchDownloader.readList(reader);
+    	} catch (IOException e) {
+    		System.err.println("Failed to read the URL list: " + e.getMessage());
+    		System.exit(1);
+    		return;
+    	}
+    	System.err.printf("Downloading %d files using %d connections...\n", entries.size(), options.newConcurrencyController().getCeiling());
+    	MetricsReporter metricsReporter = openMetricsReporter(options);
+    	boolean batchSuccess = new BatchDownloader(options, metricsReporter).download(entries);
+    	if (metricsReporter != null) {
+    		metricsReporter.close();
+    	}
+    	if (!batchSuccess) {
+    		System.exit(1);
+    	}
+    }
+
+    private static MetricsReporter openMetricsReporter(DownloadOptions options) {
+    	try {
+    		return options.newMetricsReporter();
+    	} catch (IOException e) {
+    		System.err.println("Failed to open the metrics file: " + e.getMessage());
+    		System.exit(1);
+    		return null;
     	}
     }
 }
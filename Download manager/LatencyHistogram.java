@@ -0,0 +1,79 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, in power-of-two buckets of nanoseconds.
+ *
+ * Recording a duration is a couple of LongAdder increments, cheap enough for the download path. The percentiles
+ * are the upper bounds of their buckets (capped by the maximum), so they are accurate to a factor of two.
+ */
+class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    // Bucket i counts the durations of less than 2^i nanoseconds, and at least 2^(i-1)
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        this.buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+        this.count.increment();
+        this.totalNanos.add(nanos);
+        this.maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Records the time passed since startNanos, a System.nanoTime().
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    long getTotalNanos() {
+        return this.totalNanos.sum();
+    }
+
+    /**
+     * @return count, totalMicros, meanMicros, p50Micros, p99Micros and maxMicros
+     */
+    Map<String, Long> snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets[i].sum();
+            total += counts[i];
+        }
+        long totalNanos = this.totalNanos.sum();
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", total);
+        snapshot.put("totalMicros", totalNanos / 1000);
+        snapshot.put("meanMicros", total == 0 ? 0 : totalNanos / total / 1000);
+        long maxNanos = this.maxNanos.get();
+        snapshot.put("p50Micros", Math.min(percentile(counts, total, 0.50), maxNanos) / 1000);
+        snapshot.put("p99Micros", Math.min(percentile(counts, total, 0.99), maxNanos) / 1000);
+        snapshot.put("maxMicros", maxNanos / 1000);
+        return snapshot;
+    }
+
+    private static long percentile(long[] counts, long total, double fraction) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : 1L << Math.min(i, 62);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An OutputFile that maps the file in sliding windows of windowSize bytes and copies the data straight into the
+ * mappings, without a system call per write.
+ *
+ * At most maxWindows windows are mapped at once; the least recently used one is forced and dropped when another
+ * is needed. force() forces the dirty windows, so the flush of the mappings happens as part of the metadata commit.
+ * Writers of disjoint regions never share state beyond the short lookup of their window. The lookup, which may
+ * map a window and force the evicted one, holds a ReentrantLock rather than a monitor, so a virtual thread does not
+ * hold its carrier thread meanwhile.
+ */
+class MappedOutputFile implements OutputFile {
+    static final long DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    static final int DEFAULT_MAX_WINDOWS = 16;
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final long fullSize;
+    private final long windowSize;
+    private final int maxWindows;
+    // Window index -> mapping, in access order
+    private final LinkedHashMap<Long, MappedByteBuffer> windows = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock windowsLock = new ReentrantLock();
+    private final Set<Long> dirtyWindows = ConcurrentHashMap.newKeySet();
+
+    MappedOutputFile(File file, long fullSize, long windowSize, int maxWindows) throws IOException {
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = this.randomAccessFile.getChannel();
+        if (this.randomAccessFile.length() != fullSize) {
+            this.randomAccessFile.setLength(fullSize);
+        }
+        this.fullSize = fullSize;
+        this.windowSize = windowSize;
+        this.maxWindows = maxWindows;
+    }
+
+    @Override
+    public void write(ByteBuffer data, long offset) throws IOException {
+        while (data.hasRemaining()) {
+            long windowIndex = offset / this.windowSize;
+            int offsetInWindow = (int) (offset % this.windowSize);
+            // A duplicate has its own position, so writers never share the position of the mapping
+            ByteBuffer target = getWindow(windowIndex).duplicate();
+            target.position(offsetInWindow);
+            int size = Math.min(data.remaining(), target.remaining());
+            ByteBuffer source = data.duplicate();
+            source.limit(source.position() + size);
+            target.put(source);
+            // Marked only after the copy, so a force() or an eviction that runs meanwhile cannot clear the mark of
+            // bytes it did not flush. The range is published after write() returns, so the commit sees the mark
+            this.dirtyWindows.add(windowIndex);
+            data.position(data.position() + size);
+            offset += size;
+        }
+    }
+
+    @Override
+    public void force() throws IOException {
+        for (Iterator<Long> iterator = this.dirtyWindows.iterator(); iterator.hasNext(); ) {
+            Long windowIndex = iterator.next();
+            iterator.remove();
+            MappedByteBuffer window;
+            this.windowsLock.lock();
+            try {
+                window = this.windows.get(windowIndex);
+            } finally {
+                this.windowsLock.unlock();
+            }
+            if (window != null) {
+                window.force();
+            } else {
+                // The window was dropped after the write, force the file's pages instead
+                this.channel.force(false);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        this.windowsLock.lock();
+        try {
+            this.windows.clear();
+        } finally {
+            this.windowsLock.unlock();
+        }
+        this.randomAccessFile.close();
+    }
+
+    private MappedByteBuffer getWindow(long windowIndex) throws IOException {
+        this.windowsLock.lock();
+        try {
+            MappedByteBuffer window = this.windows.get(windowIndex);
+            if (window == null) {
+                if (this.windows.size() >= this.maxWindows) {
+                    Iterator<Map.Entry<Long, MappedByteBuffer>> eldest = this.windows.entrySet().iterator();
+                    Map.Entry<Long, MappedByteBuffer> evicted = eldest.next();
+                    if (this.dirtyWindows.remove(evicted.getKey())) {
+                        evicted.getValue().force();
+                    }
+                    eldest.remove();
+                }
+                long start = windowIndex * this.windowSize;
+                window = this.channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(this.windowSize, this.fullSize - start));
+                this.windows.put(windowIndex, window);
+            }
+            return window;
+        } finally {
+            this.windowsLock.unlock();
+        }
+    }
+}
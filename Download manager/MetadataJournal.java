@@ -0,0 +1,330 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Stores a RangeIndex and its ChecksumIndex on disk as a snapshot plus an append-only journal of completed ranges
+ * and their checksums. The snapshot also keeps the validators of the remote file (ETag and Last-Modified), so a
+ * resumed download can tell whether the file changed without asking the server for them first.
+ *
+ * Every completed range costs a small fixed-size journal record instead of rewriting the whole metadata.
+ * Once the journal grows past COMPACT_THRESHOLD it is folded into a new snapshot, which is written to a
+ * temporary file and atomically renamed over the old one. On load the snapshot is read and the journal is
+ * replayed on top of it; a torn or corrupted tail record (e.g. after a crash) is dropped.
+ *
+ * flush() forces the journal to the disk, and compact() syncs the directory after the rename, so the callers decide
+ * how often the metadata is durable by how often they flush; the FileWriter does so whenever its DurabilityPolicy
+ * syncs the file.
+ *
+ * The file I/O runs under a ReentrantLock rather than a monitor, so the committer does not hold its carrier thread
+ * if it is a virtual thread.
+ */
+class MetadataJournal {
+    static final int COMPACT_THRESHOLD = 256 * 1024;
+    private static final int SNAPSHOT_MAGIC = 0x49444D33; // "IDM3"
+    private static final byte RANGE_COMPLETED = 1;
+    private static final int RECORD_SIZE = 1 + 8 + 8 + 4 + 4;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File tempFile;
+    private final ByteBuffer pendingRecords = ByteBuffer.allocate(RECORD_SIZE * 256);
+    private final CRC32 recordCrc = new CRC32();
+    private FileChannel journalChannel;
+    private boolean journalUnforced;
+    private HttpTransport.FileInfo fileInfo;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    MetadataJournal(String metadataFilename, String tempFilename) {
+        this.snapshotFile = new File(metadataFilename);
+        this.journalFile = new File(metadataFilename + ".journal");
+        this.tempFile = new File(tempFilename);
+    }
+
+    /**
+     * @return true if a snapshot or a journal from a previous run exists
+     */
+    boolean exists() {
+        return this.snapshotFile.exists() || this.journalFile.exists();
+    }
+
+    /**
+     * Rebuilds the index from the snapshot and the journal, and reads the validators of the file.
+     *
+     * @param checksums filled with the checksums of the downloaded ranges
+     */
+    RangeIndex load(ChecksumIndex checksums) throws IOException {
+        this.lock.lock();
+        try {
+            if (!this.snapshotFile.exists()) {
+                throw new IOException("The metadata snapshot is missing");
+            }
+            RangeIndex index = readSnapshot(checksums);
+            if (this.journalFile.exists()) {
+                long validLength = replayJournal(index, checksums);
+                if (validLength < this.journalFile.length()) {
+                    FileChannel channel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.WRITE);
+                    try {
+                        channel.truncate(validLength);
+                    } finally {
+                        channel.close();
+                    }
+                }
+            }
+            return index;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the validators of the file, as loaded or set
+     */
+    HttpTransport.FileInfo getFileInfo() {
+        this.lock.lock();
+        try {
+            return this.fileInfo;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the validators of the file, which are written with the next snapshot.
+     */
+    void setFileInfo(HttpTransport.FileInfo fileInfo) {
+        this.lock.lock();
+        try {
+            this.fileInfo = fileInfo;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void append(Range range, int checksum) throws IOException {
+        this.lock.lock();
+        try {
+            if (this.pendingRecords.remaining() < RECORD_SIZE) {
+                writePendingRecords();
+            }
+            int recordStart = this.pendingRecords.position();
+            this.pendingRecords.put(RANGE_COMPLETED);
+            this.pendingRecords.putLong(range.getStart());
+            this.pendingRecords.putLong(range.getEnd());
+            this.pendingRecords.putInt(checksum);
+            this.recordCrc.reset();
+            this.recordCrc.update(this.pendingRecords.array(), recordStart, RECORD_SIZE - 4);
+            this.pendingRecords.putInt((int) this.recordCrc.getValue());
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the appended records to the journal and forces it to the disk, and compacts it into a new snapshot
+     * if it grew too large.
+     */
+    void flush(RangeIndex index, ChecksumIndex checksums) throws IOException {
+        this.lock.lock();
+        try {
+            writePendingRecords();
+            if (this.journalChannel == null) {
+                return;
+            }
+            if (this.journalChannel.size() >= COMPACT_THRESHOLD) {
+                compact(index, checksums);
+            } else if (this.journalUnforced) {
+                this.journalChannel.force(false);
+                this.journalUnforced = false;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the whole index and truncates the journal.
+     */
+    void compact(RangeIndex index, ChecksumIndex checksums) throws IOException {
+        this.lock.lock();
+        try {
+            writePendingRecords();
+            FileOutputStream fileOutputStream = new FileOutputStream(this.tempFile);
+            CheckedOutputStream checkedOutputStream = new CheckedOutputStream(fileOutputStream, new CRC32());
+            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(checkedOutputStream));
+            try {
+                dataOutputStream.writeInt(SNAPSHOT_MAGIC);
+                writeOptional(dataOutputStream, this.fileInfo != null ? this.fileInfo.etag : null);
+                writeOptional(dataOutputStream, this.fileInfo != null ? this.fileInfo.lastModified : null);
+                index.writeTo(dataOutputStream);
+                checksums.writeTo(dataOutputStream);
+                dataOutputStream.flush();
+                dataOutputStream.writeInt((int) checkedOutputStream.getChecksum().getValue());
+                dataOutputStream.flush();
+                fileOutputStream.getFD().sync();
+            } finally {
+                dataOutputStream.close();
+            }
+            Files.move(this.tempFile.toPath(), this.snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // The rename is only durable once the directory is, and the journal must not be emptied before that
+            syncDirectory(this.snapshotFile);
+            // A crash before the truncation only replays records the snapshot already contains
+            openJournal().truncate(0);
+            this.journalUnforced = false;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void close() throws IOException {
+        this.lock.lock();
+        try {
+            writePendingRecords();
+            if (this.journalChannel != null) {
+                this.journalChannel.close();
+                this.journalChannel = null;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void delete() {
+        this.lock.lock();
+        try {
+            try {
+                close();
+            } catch (IOException e) {
+                // The files are removed anyway
+            }
+            this.snapshotFile.delete();
+            this.journalFile.delete();
+            this.tempFile.delete();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void writePendingRecords() throws IOException {
+        if (this.pendingRecords.position() == 0) {
+            return;
+        }
+        FileChannel channel = openJournal();
+        this.pendingRecords.flip();
+        while (this.pendingRecords.hasRemaining()) {
+            channel.write(this.pendingRecords, channel.size());
+        }
+        this.pendingRecords.clear();
+        this.journalUnforced = true;
+    }
+
+    private FileChannel openJournal() throws IOException {
+        if (this.journalChannel == null) {
+            boolean created = !this.journalFile.exists();
+            this.journalChannel = FileChannel.open(this.journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            if (created) {
+                syncDirectory(this.journalFile);
+            }
+        }
+        return this.journalChannel;
+    }
+
+    /**
+     * Forces the directory entries of the directory that holds the given file to the disk.
+     */
+    private static void syncDirectory(File file) {
+        try (FileChannel directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Some platforms (e.g. Windows) cannot open or sync a directory, which leaves nothing more to do there
+        }
+    }
+
+    private RangeIndex readSnapshot(ChecksumIndex checksums) throws IOException {
+        byte[] content = Files.readAllBytes(this.snapshotFile.toPath());
+        if (content.length < 8) {
+            throw new IOException("Corrupted metadata snapshot");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 4);
+        DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(content));
+        if (dataInputStream.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Unknown metadata format");
+        }
+        String etag = readOptional(dataInputStream);
+        String lastModified = readOptional(dataInputStream);
+        RangeIndex index = RangeIndex.readFrom(dataInputStream);
+        ChecksumIndex stored = ChecksumIndex.readFrom(dataInputStream, index.getSize());
+        if (dataInputStream.readInt() != (int) crc.getValue()) {
+            throw new IOException("Corrupted metadata snapshot");
+        }
+        for (ChecksumIndex.Record record : stored.getRecords()) {
+            checksums.add(record.start, record.end, record.checksum);
+        }
+        this.fileInfo = new HttpTransport.FileInfo(index.getSize(), etag, lastModified);
+        return index;
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Applies every intact journal record to the index.
+     *
+     * @return the length of the intact prefix of the journal
+     */
+    private long replayJournal(RangeIndex index, ChecksumIndex checksums) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.journalFile.toPath())));
+        byte[] record = new byte[RECORD_SIZE];
+        long validLength = 0;
+        try {
+            while (true) {
+                try {
+                    dataInputStream.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                byte type = buffer.get();
+                long start = buffer.getLong();
+                long end = buffer.getLong();
+                int checksum = buffer.getInt();
+                this.recordCrc.reset();
+                this.recordCrc.update(record, 0, RECORD_SIZE - 4);
+                if (type != RANGE_COMPLETED || buffer.getInt() != (int) this.recordCrc.getValue()
+                        || start < 0 || end < start || end >= index.getSize()) {
+                    break;
+                }
+                index.mark(start, end, DownloadableMetadata.CHUNK_WAS_DOWNLOADED_ALREADY);
+                checksums.remove(start, end);
+                checksums.add(start, end, checksum);
+                validLength += RECORD_SIZE;
+            }
+        } finally {
+            dataInputStream.close();
+        }
+        return validLength;
+    }
+}
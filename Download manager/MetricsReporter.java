@@ -0,0 +1,76 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Writes the DownloadMetrics of the running downloads as JSON lines, one line per download every period, and a
+ * last line when a download ends. Shared by all the downloads of the process.
+ */
+class MetricsReporter implements Runnable {
+    static final long DEFAULT_PERIOD = 1000;
+
+    private final PrintStream out;
+    private final long period;
+    private final List<DownloadMetrics> downloads = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+
+    private MetricsReporter(PrintStream out, long period) {
+        this.out = out;
+        this.period = period;
+        this.thread = new Thread(this, "metrics-reporter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @param destination a file to append the lines to, or "-" for the standard output
+     * @param period milliseconds between the lines of a download
+     */
+    static MetricsReporter open(String destination, long period) throws IOException {
+        PrintStream out = destination.equals("-") ? System.out : new PrintStream(new FileOutputStream(destination, true), true);
+        return new MetricsReporter(out, period);
+    }
+
+    void add(DownloadMetrics metrics) {
+        this.downloads.add(metrics);
+    }
+
+    /**
+     * Stops reporting the download, after writing its final line.
+     */
+    void remove(DownloadMetrics metrics) {
+        if (this.downloads.remove(metrics)) {
+            print(metrics);
+        }
+    }
+
+    void close() {
+        this.thread.interrupt();
+        if (this.out != System.out) {
+            this.out.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(this.period);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (DownloadMetrics metrics : this.downloads) {
+                print(metrics);
+            }
+        }
+    }
+
+    private void print(DownloadMetrics metrics) {
+        String line = metrics.toJson();
+        synchronized (this.out) {
+            this.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * One source of a file, and what the download learned about it so far.
+ *
+ * The throughput of a mirror is a moving average of the throughput of its connections, sampled whenever one of
+ * them publishes written bytes, so it reflects both the speed of the server and how loaded it is.
+ */
+class Mirror {
+    // Weight of the latest sample in the moving average of the throughput
+    private static final double SMOOTHING = 0.3;
+
+    private final String url;
+    // Sent as If-Range, null if the mirror has none
+    private volatile String validator;
+    private double bytesPerSecond;
+    private int samples;
+    private long deliveredBytes;
+    private int activeConnections;
+    private int consecutiveFailures;
+    private int degradedSamples;
+    private volatile boolean dropped;
+    private String dropReason;
+
+    Mirror(String url) {
+        this.url = url;
+    }
+
+    String getUrl() {
+        return this.url;
+    }
+
+    String getValidator() {
+        return this.validator;
+    }
+
+    void setValidator(String validator) {
+        this.validator = validator;
+    }
+
+    boolean isDropped() {
+        return this.dropped;
+    }
+
+    synchronized double getBytesPerSecond() {
+        return this.bytesPerSecond;
+    }
+
+    synchronized int getSamples() {
+        return this.samples;
+    }
+
+    synchronized int getActiveConnections() {
+        return this.activeConnections;
+    }
+
+    synchronized int getConsecutiveFailures() {
+        return this.consecutiveFailures;
+    }
+
+    synchronized void started() {
+        this.activeConnections++;
+    }
+
+    synchronized void finished(boolean success) {
+        this.activeConnections--;
+        this.consecutiveFailures = success ? 0 : this.consecutiveFailures + 1;
+    }
+
+    /**
+     * Adds a sample of one connection: bytes delivered over the given time.
+     */
+    synchronized void delivered(long bytes, long nanos) {
+        double sample = bytes * 1e9 / Math.max(nanos, 1);
+        this.bytesPerSecond = this.samples == 0 ? sample : this.bytesPerSecond + SMOOTHING * (sample - this.bytesPerSecond);
+        this.samples++;
+        this.deliveredBytes += bytes;
+    }
+
+    /**
+     * @param degraded whether the mirror is much slower than the best one at its latest sample
+     * @return the number of samples in a row at which the mirror was degraded
+     */
+    synchronized int degraded(boolean degraded) {
+        this.degradedSamples = degraded ? this.degradedSamples + 1 : 0;
+        return this.degradedSamples;
+    }
+
+    synchronized void drop(String reason) {
+        this.dropped = true;
+        this.dropReason = reason;
+    }
+
+    @Override
+    public synchronized String toString() {
+        String report = String.format("%s: %d bytes, %.0f Bps per connection", this.url, this.deliveredBytes, this.bytesPerSecond);
+        return this.dropped ? report + ", dropped (" + this.dropReason + ")" : report;
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The mirrors of one file, given as "URL|URL|...". The file is named after the first URL.
+ *
+ * Before the download every other mirror is asked for the file's size and validators, and the mirrors that
+ * disagree with the first one about the size are dropped. Every mirror sends its own validator in If-Range. A
+ * different ETag is only reported, since independent servers derive their ETags differently; the CRC32C and
+ * SHA-256 checks of the whole file (idc.crc32c, idc.sha256) catch mirrors that serve other content. During the
+ * download every range goes to the mirror with the best throughput per connection; a mirror that was not measured
+ * yet is tried first. Since the throughput of a mirror falls as it gets loaded, the connections (and so the
+ * ranges) spread over the mirrors in proportion to what each one delivers.
+ *
+ * A mirror is dropped once MAX_CONSECUTIVE_FAILURES of its ranges failed in a row, or once it delivered less than
+ * DEGRADED_FRACTION of the throughput of the best mirror for DEGRADED_SAMPLES samples in a row. The last mirror
+ * left is never dropped.
+ */
+class MirrorSet {
+    static final int MAX_CONSECUTIVE_FAILURES = 3;
+    static final double DEGRADED_FRACTION = 0.1;
+    static final int DEGRADED_SAMPLES = 16;
+
+    private final List<Mirror> mirrors = new ArrayList<>();
+
+    MirrorSet(String spec) {
+        for (String url : spec.split("\\|")) {
+            if (!url.isEmpty()) {
+                this.mirrors.add(new Mirror(url));
+            }
+        }
+        if (this.mirrors.isEmpty()) {
+            throw new IllegalArgumentException("No URL given");
+        }
+    }
+
+    String getPrimaryUrl() {
+        return this.mirrors.get(0).getUrl();
+    }
+
+    int size() {
+        return this.mirrors.size();
+    }
+
+    /**
+     * Asks the other mirrors for the file, drops the ones that do not serve a file of the size the first mirror
+     * serves, and warns about the ones whose ETag differs from the ETag of the first mirror.
+     *
+     * @param primary what the first mirror told about the file
+     * @param progressLabel printed before the messages about dropped mirrors
+     */
+    void probe(HttpTransport transport, HttpTransport.FileInfo primary, String progressLabel) throws InterruptedException {
+        long fullSize = primary.size;
+        String primaryEtag = primary.etag;
+        this.mirrors.get(0).setValidator(primary.getValidator());
+        for (int i = 1; i < this.mirrors.size(); i++) {
+            Mirror mirror = this.mirrors.get(i);
+            HttpTransport.FileInfo info;
+            try {
+                info = transport.getFileInfo(mirror.getUrl());
+            } catch (IOException e) {
+                drop(mirror, "unreachable", progressLabel);
+                continue;
+            }
+            mirror.setValidator(info.getValidator());
+            if (info.size != fullSize) {
+                drop(mirror, "serves " + info.size + " bytes instead of " + fullSize, progressLabel);
+            } else if (primaryEtag != null && info.etag != null && !primaryEtag.equals(info.etag)) {
+                System.err.println(progressLabel + "Mirror " + mirror.getUrl() + " serves ETag " + info.etag + " instead of " + primaryEtag);
+            }
+        }
+    }
+
+    /**
+     * Picks the mirror for the next range, and counts the connection as active on it until finished().
+     */
+    synchronized Mirror acquire() {
+        Mirror best = null;
+        for (Mirror mirror : this.mirrors) {
+            if (mirror.isDropped()) {
+                continue;
+            }
+            if (best == null || isBetter(mirror, best)) {
+                best = mirror;
+            }
+        }
+        if (best == null) {
+            // Only reachable if every mirror failed its probe, the first one gets the blame on the way out
+            best = this.mirrors.get(0);
+        }
+        best.started();
+        return best;
+    }
+
+    synchronized void finished(Mirror mirror, boolean success, String progressLabel) {
+        mirror.finished(success);
+        if (mirror.getConsecutiveFailures() >= MAX_CONSECUTIVE_FAILURES) {
+            drop(mirror, mirror.getConsecutiveFailures() + " failed ranges in a row", progressLabel);
+        }
+    }
+
+    synchronized void delivered(Mirror mirror, long bytes, long nanos, String progressLabel) {
+        mirror.delivered(bytes, nanos);
+        double best = 0;
+        for (Mirror other : this.mirrors) {
+            if (!other.isDropped()) {
+                best = Math.max(best, other.getBytesPerSecond());
+            }
+        }
+        if (mirror.degraded(mirror.getBytesPerSecond() < best * DEGRADED_FRACTION) >= DEGRADED_SAMPLES) {
+            drop(mirror, "too slow", progressLabel);
+        }
+    }
+
+    /**
+     * @return one line per mirror, with what it delivered
+     */
+    synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Mirror mirror : this.mirrors) {
+            report.append(report.length() > 0 ? "\n" : "").append("Mirror ").append(mirror);
+        }
+        return report.toString();
+    }
+
+    private boolean isBetter(Mirror mirror, Mirror best) {
+        // Unmeasured mirrors first, so every mirror gets measured
+        if ((mirror.getSamples() == 0) != (best.getSamples() == 0)) {
+            return mirror.getSamples() == 0;
+        }
+        if (mirror.getSamples() == 0) {
+            return mirror.getActiveConnections() < best.getActiveConnections();
+        }
+        return mirror.getBytesPerSecond() > best.getBytesPerSecond();
+    }
+
+    private synchronized void drop(Mirror mirror, String reason, String progressLabel) {
+        if (mirror.isDropped()) {
+            return;
+        }
+        int live = 0;
+        for (Mirror other : this.mirrors) {
+            if (!other.isDropped()) {
+                live++;
+            }
+        }
+        if (live <= 1) {
+            return;
+        }
+        mirror.drop(reason);
+        System.err.println(progressLabel + "Dropping mirror " + mirror.getUrl() + ": " + reason);
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The downloaded file on disk. Implementations are thread-safe for writes to disjoint regions.
+ */
+interface OutputFile {
+    enum Mode { CHANNEL, MMAP }
+
+    /**
+     * Writes the remaining bytes of data at the given offset of the file.
+     */
+    void write(ByteBuffer data, long offset) throws IOException;
+
+    /**
+     * Forces everything written so far to the storage device.
+     */
+    void force() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * Opens the file, and sets its length to fullSize once, instead of growing it (and its metadata) write by
+     * write. On most file systems the file stays sparse until the chunks are written.
+     */
+    static OutputFile open(File file, long fullSize, Mode mode) throws IOException {
+        if (mode == Mode.MMAP) {
+            return new MappedOutputFile(file, fullSize, MappedOutputFile.DEFAULT_WINDOW_SIZE, MappedOutputFile.DEFAULT_MAX_WINDOWS);
+        }
+        return new ChannelOutputFile(file, fullSize);
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A range handed by the RangeScheduler to one HTTPRangeGetter.
+ *
+ * The getter reserves chunks from the front of the range before reading them, and the scheduler may cut the
+ * unreserved tail off the range and hand it to another getter. The end of the range therefore only shrinks,
+ * and never below the bytes the getter already reserved.
+ *
+ * In the end-game the scheduler may hedge a range: a second assignment races for its undelivered part on another
+ * connection. Both getters claim every read before writing it, and the first claim wins the race: the connection
+ * of the loser is closed, and the loser can neither write nor deliver anything of the range afterwards. A hedged
+ * range is never split.
+ *
+ * The first range of a download may come with the body of the request that learned the size of the file, which
+ * the getter reads instead of opening a new request. If that body is the whole file, because the server ignored
+ * the Range header, the range is pinned: it is neither split nor hedged, since the server serves no other range.
+ */
+class RangeAssignment {
+    private final long start;
+    private long end;
+    // Next byte that was not reserved by the getter yet
+    private long reserved;
+    // Next byte that was not written and published yet
+    private long delivered;
+    private final long startTime;
+    private volatile Race race;
+    // The response the getter is reading, closed when the getter loses the race
+    private volatile Closeable connection;
+    private InputStream openedBody;
+    private final boolean pinned;
+
+    RangeAssignment(Range range) {
+        this(range, null, false);
+    }
+
+    /**
+     * @param openedBody a response body that starts at the start of the range, or null
+     * @param pinned whether the range must not be split or hedged
+     */
+    RangeAssignment(Range range, InputStream openedBody, boolean pinned) {
+        this.openedBody = openedBody;
+        this.pinned = pinned;
+        this.start = range.getStart();
+        this.end = range.getEnd();
+        this.reserved = this.start;
+        this.delivered = this.start;
+        this.startTime = System.nanoTime();
+    }
+
+    long getStart() {
+        return this.start;
+    }
+
+    synchronized long getEnd() {
+        return this.end;
+    }
+
+    /**
+     * @return the next byte that was not delivered yet
+     */
+    synchronized long getPosition() {
+        return this.delivered;
+    }
+
+    /**
+     * @return the body that was opened for the range, or null if there is none or it was taken already
+     */
+    synchronized InputStream takeOpenedBody() {
+        InputStream body = this.openedBody;
+        this.openedBody = null;
+        return body;
+    }
+
+    /**
+     * Gives back the reserved bytes that were not delivered, before the getter retries from getPosition().
+     */
+    synchronized void rewind() {
+        this.reserved = this.delivered;
+    }
+
+    /**
+     * Reserves the next chunk of the range.
+     *
+     * @return the size of the reserved chunk, or 0 if the whole range was reserved
+     */
+    synchronized int reserve(int maxSize) {
+        int size = (int) Math.min(maxSize, this.end - this.reserved + 1);
+        if (size <= 0) {
+            return 0;
+        }
+        this.reserved += size;
+        return size;
+    }
+
+    /**
+     * Marks the chunk that was reserved before as delivered, unless the range was lost to a rival.
+     *
+     * @return false if the range belongs to the rival, which delivers the chunk instead
+     */
+    synchronized boolean delivered(long size) {
+        if (!claim()) {
+            return false;
+        }
+        this.delivered += size;
+        return true;
+    }
+
+    /**
+     * Called before writing every read.
+     *
+     * @return false if a rival won the race for the range
+     */
+    boolean claim() {
+        Race race = this.race;
+        return race == null || race.claim(this);
+    }
+
+    /**
+     * Gives up the race, if it is not decided yet, when the getter stops before the end of the range.
+     *
+     * @return true if the range still belongs to this assignment, false if it belongs to its rival
+     */
+    boolean forfeit() {
+        Race race = this.race;
+        return race == null || race.forfeit(this);
+    }
+
+    /**
+     * @return true if a rival won the race for the range
+     */
+    boolean isLost() {
+        Race race = this.race;
+        return race != null && race.isLost(this);
+    }
+
+    boolean isHedged() {
+        return this.race != null;
+    }
+
+    boolean isPinned() {
+        return this.pinned;
+    }
+
+    /**
+     * Registers the response the getter reads, to close it if the getter loses the race.
+     */
+    void setConnection(Closeable connection) {
+        this.connection = connection;
+        if (isLost()) {
+            closeConnection();
+        }
+    }
+
+    /**
+     * Closes the response the getter reads, which fails its read.
+     */
+    void closeConnection() {
+        Closeable connection = this.connection;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // The getter fails its read either way
+            }
+        }
+    }
+
+    /**
+     * Creates a rival for the undelivered part of the range.
+     *
+     * @return the rival, or null if the range is hedged already or delivered
+     */
+    synchronized RangeAssignment hedge() {
+        if (this.race != null || this.pinned || this.delivered > this.end) {
+            return null;
+        }
+        RangeAssignment rival = new RangeAssignment(new Range(this.delivered, this.end));
+        Race race = new Race(this, rival);
+        rival.race = race;
+        this.race = race;
+        return rival;
+    }
+
+    /**
+     * @return the part of the range that was not delivered, or null if it was all delivered
+     */
+    synchronized Range getUndelivered() {
+        return this.delivered <= this.end ? new Range(this.delivered, this.end) : null;
+    }
+
+    synchronized long getRemaining() {
+        return this.end - this.reserved + 1;
+    }
+
+    synchronized long getUndeliveredLength() {
+        return this.end - this.delivered + 1;
+    }
+
+    /**
+     * @return the nanoseconds since the range was assigned
+     */
+    long getAge() {
+        return System.nanoTime() - this.startTime;
+    }
+
+    /**
+     * @return the delivered bytes per second since the range was assigned
+     */
+    synchronized double getThroughput() {
+        double seconds = Math.max(System.nanoTime() - this.startTime, 1) / 1e9;
+        return (this.delivered - this.start) / seconds;
+    }
+
+    /**
+     * Cuts the second half of the unreserved bytes off this range.
+     *
+     * @param minLength minimal length of each of the two halves
+     * @return the tail that was cut off, or null if the range is too short to split
+     */
+    synchronized Range splitTail(long minLength) {
+        long remaining = this.end - this.reserved + 1;
+        if (this.race != null || this.pinned || remaining < 2 * minLength) {
+            return null;
+        }
+        long middle = this.reserved + remaining / 2;
+        Range tail = new Range(middle, this.end);
+        this.end = middle - 1;
+        return tail;
+    }
+
+    /**
+     * Two assignments of the same bytes, of which the first to claim a read wins.
+     */
+    private static class Race {
+        private final RangeAssignment original;
+        private final RangeAssignment hedge;
+        private final AtomicReference<RangeAssignment> winner = new AtomicReference<>();
+
+        Race(RangeAssignment original, RangeAssignment hedge) {
+            this.original = original;
+            this.hedge = hedge;
+        }
+
+        boolean claim(RangeAssignment assignment) {
+            if (this.winner.compareAndSet(null, assignment)) {
+                rival(assignment).closeConnection();
+            }
+            return this.winner.get() == assignment;
+        }
+
+        boolean forfeit(RangeAssignment assignment) {
+            this.winner.compareAndSet(null, rival(assignment));
+            return this.winner.get() == assignment;
+        }
+
+        boolean isLost(RangeAssignment assignment) {
+            RangeAssignment winner = this.winner.get();
+            return winner != null && winner != assignment;
+        }
+
+        private RangeAssignment rival(RangeAssignment assignment) {
+            return assignment == this.original ? this.hedge : this.original;
+        }
+    }
+}
@@ -0,0 +1,303 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A local HTTP server that serves Range requests, to measure and test downloads without a real server.
+ *
+ * It serves the files of a directory, and generated files at /synthetic/SIZE (SIZE bytes of syntheticByte()).
+ * Every response carries an ETag and, for the files of the directory, a Last-Modified date; a range request whose
+ * If-Range matches neither is answered with the whole file, as a file that changed would be. The server counts the
+ * connections the requests came over (getConnectionCount()), to check that the clients reuse them.
+ * The server can be made to behave like a remote one:
+ *
+ * - bandwidth: bytes per second shared by all the responses
+ * - connectionLimit: bytes per second of every single response
+ * - latency: milliseconds before every response
+ * - maxConnections: concurrent responses, further requests get 503
+ * - failureRate: probability of answering a request with 500
+ * - truncateRate: probability of closing a response in the middle of its body
+ *
+ * Run it on its own with "java RangeHttpServer PORT [DIRECTORY]", and the settings as server.* system properties
+ * (e.g. -Dserver.bandwidth=1000000), or start it in-process with start().
+ */
+class RangeHttpServer {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final String SYNTHETIC_PREFIX = "/synthetic/";
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final File directory;
+    // The client address and port of every connection that sent a request
+    private final Set<InetSocketAddress> clientConnections = ConcurrentHashMap.newKeySet();
+    private volatile TokenBucket bandwidth = new TokenBucket();
+    private volatile Long connectionLimit;
+    private volatile long latency;
+    private volatile Semaphore connections;
+    private volatile double failureRate;
+    private volatile double truncateRate;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     * @param directory directory of the served files, or null to serve only synthetic files
+     */
+    RangeHttpServer(int port, File directory) throws IOException {
+        this.directory = directory;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.createContext("/", this::handle);
+        this.server.setExecutor(this.executor);
+    }
+
+    /**
+     * Creates a server with the settings of the server.* system properties.
+     */
+    static RangeHttpServer fromSystemProperties(int port, File directory) throws IOException {
+        RangeHttpServer server = new RangeHttpServer(port, directory);
+        server.setBandwidth(Long.getLong("server.bandwidth"));
+        server.setConnectionLimit(Long.getLong("server.connectionLimit"));
+        server.setLatency(Long.getLong("server.latency", 0));
+        server.setMaxConnections(Integer.getInteger("server.maxConnections"));
+        server.setFailureRate(Double.parseDouble(System.getProperty("server.failureRate", "0")));
+        server.setTruncateRate(Double.parseDouble(System.getProperty("server.truncateRate", "0")));
+        return server;
+    }
+
+    void setBandwidth(Long bytesPerSecond) {
+        this.bandwidth = TokenBucket.forLimit(bytesPerSecond, null, TokenBucket.Mode.HARD);
+    }
+
+    void setConnectionLimit(Long bytesPerSecond) {
+        this.connectionLimit = bytesPerSecond;
+    }
+
+    void setLatency(long millis) {
+        this.latency = millis;
+    }
+
+    void setMaxConnections(Integer maxConnections) {
+        this.connections = maxConnections != null ? new Semaphore(maxConnections) : null;
+    }
+
+    void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    void setTruncateRate(double truncateRate) {
+        this.truncateRate = truncateRate;
+    }
+
+    void start() {
+        this.server.start();
+    }
+
+    void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of connections that sent requests so far
+     */
+    int getConnectionCount() {
+        return this.clientConnections.size();
+    }
+
+    /**
+     * @return the URL of a generated file of the given size
+     */
+    String getSyntheticUrl(long size) {
+        return "http://127.0.0.1:" + getPort() + SYNTHETIC_PREFIX + size;
+    }
+
+    /**
+     * @return the byte at the given position of every synthetic file
+     */
+    static byte syntheticByte(long position) {
+        long mixed = position * 0x9E3779B97F4A7C15L;
+        return (byte) (mixed >>> 56 ^ position);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        this.clientConnections.add(exchange.getRemoteAddress());
+        Semaphore limit = this.connections;
+        if (limit != null && !limit.tryAcquire()) {
+            sendEmpty(exchange, 503);
+            return;
+        }
+        try {
+            if (this.latency > 0) {
+                Thread.sleep(this.latency);
+            }
+            if (ThreadLocalRandom.current().nextDouble() < this.failureRate) {
+                sendEmpty(exchange, 500);
+                return;
+            }
+            serve(exchange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (limit != null) {
+                limit.release();
+            }
+            exchange.close();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException, InterruptedException {
+        String path = exchange.getRequestURI().getPath();
+        Source source = open(path);
+        if (source == null) {
+            sendEmpty(exchange, 404);
+            return;
+        }
+        try {
+            long start = 0;
+            long end = source.size - 1;
+            int status = 200;
+            String etag = "\"" + source.size + "-" + source.lastModified + "\"";
+            String lastModified = source.file != null
+                    ? DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(source.lastModified).atZone(ZoneOffset.UTC)) : null;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            if (ifRange != null && !ifRange.equals(etag) && !ifRange.equals(lastModified)) {
+                range = null;
+            }
+            if (range != null) {
+                Matcher matcher = RANGE.matcher(range);
+                if (!matcher.matches() || Long.parseLong(matcher.group(1)) >= source.size) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + source.size);
+                    sendEmpty(exchange, 416);
+                    return;
+                }
+                start = Long.parseLong(matcher.group(1));
+                if (!matcher.group(2).isEmpty()) {
+                    end = Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + source.size);
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (lastModified != null) {
+                exchange.getResponseHeaders().set("Last-Modified", lastModified);
+            }
+            long length = end - start + 1;
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(source.size));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, length);
+            long truncateAt = ThreadLocalRandom.current().nextDouble() < this.truncateRate
+                    ? ThreadLocalRandom.current().nextLong(length) : Long.MAX_VALUE;
+            sendBody(exchange.getResponseBody(), source, start, length, truncateAt);
+        } finally {
+            source.close();
+        }
+    }
+
+    private void sendBody(OutputStream body, Source source, long start, long length, long truncateAt) throws IOException, InterruptedException {
+        TokenBucket responseBucket = this.bandwidth.child(this.connectionLimit);
+        try {
+            byte[] block = new byte[BLOCK_SIZE];
+            long sent = 0;
+            while (sent < length) {
+                int size = (int) Math.min(BLOCK_SIZE, length - sent);
+                if (sent + size > truncateAt) {
+                    // Drops the connection, the client sees the body end early
+                    throw new IOException("Injected truncation");
+                }
+                responseBucket.take(size);
+                source.read(start + sent, block, size);
+                body.write(block, 0, size);
+                sent += size;
+            }
+        } finally {
+            responseBucket.close();
+        }
+    }
+
+    private Source open(String path) throws IOException {
+        if (path.startsWith(SYNTHETIC_PREFIX)) {
+            try {
+                return new Source(null, Long.parseLong(path.substring(SYNTHETIC_PREFIX.length())), 0);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (this.directory == null || path.contains("..")) {
+            return null;
+        }
+        File file = new File(this.directory, path);
+        if (!file.isFile()) {
+            return null;
+        }
+        return new Source(new RandomAccessFile(file, "r"), file.length(), file.lastModified());
+    }
+
+    private static void sendEmpty(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    /**
+     * A served file, or a synthetic one if file is null.
+     */
+    private static class Source {
+        private final RandomAccessFile file;
+        private final long size;
+        private final long lastModified;
+
+        Source(RandomAccessFile file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        void read(long position, byte[] block, int size) throws IOException {
+            if (this.file == null) {
+                for (int i = 0; i < size; i++) {
+                    block[i] = syntheticByte(position + i);
+                }
+                return;
+            }
+            this.file.seek(position);
+            this.file.readFully(block, 0, size);
+        }
+
+        void close() throws IOException {
+            if (this.file != null) {
+                this.file.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage:\n\tjava RangeHttpServer PORT [DIRECTORY]");
+            System.exit(1);
+        }
+        RangeHttpServer server = fromSystemProperties(Integer.parseInt(args[0]), args.length == 2 ? new File(args[1]) : null);
+        server.start();
+        System.err.println("Serving on port " + server.getPort());
+    }
+}
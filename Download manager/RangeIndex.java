@@ -0,0 +1,210 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps track of which parts of a file were downloaded, are in process of download, or are still missing.
+ *
+ * The file is described by a sorted set of coalesced runs, each run holding one of the chunk states of
+ * DownloadableMetadata. Claims and lookups cost O(log n) in the number of runs, updates cost O(log n)
+ * plus the number of runs they touch, and only the downloaded runs are serialized.
+ */
+class RangeIndex {
+    private final long size;
+    private final TreeMap<Long, Run> runs = new TreeMap<>();
+    // Start -> end of every CHUNK_WAS_NOT_DOWNLOADED run, so the next missing range is a single lookup
+    private final TreeMap<Long, Long> missing = new TreeMap<>();
+    private long downloadedBytes;
+
+    RangeIndex(long size) {
+        this.size = size;
+        if (size > 0) {
+            putRun(0, size - 1, DownloadableMetadata.CHUNK_WAS_NOT_DOWNLOADED);
+        }
+    }
+
+    /**
+     * Claims the first missing range, at most maxLength bytes long, and marks it as in process of download.
+     *
+     * @return the claimed range, or null if nothing is missing
+     */
+    synchronized Range claim(long maxLength) {
+        Map.Entry<Long, Long> firstMissing = this.missing.firstEntry();
+        if (firstMissing == null) {
+            return null;
+        }
+        long start = firstMissing.getKey();
+        long end = Math.min(firstMissing.getValue(), start + Math.max(maxLength, 1) - 1);
+        update(start, end, DownloadableMetadata.CHUNK_WAS_NOT_DOWNLOADED, DownloadableMetadata.CHUNK_IN_PROCESS_OF_DOWNLOAD);
+        return new Range(start, end);
+    }
+
+    /**
+     * Sets every byte of [start, end] to the given state.
+     */
+    synchronized void mark(long start, long end, byte state) {
+        update(start, end, (byte) -1, state);
+    }
+
+    /**
+     * Sets the bytes of [start, end] that are currently in fromState to toState, leaving all others untouched.
+     */
+    synchronized void markIf(long start, long end, byte fromState, byte toState) {
+        update(start, end, fromState, toState);
+    }
+
+    /**
+     * @return true if every byte of [start, end] is in the given state
+     */
+    synchronized boolean isAll(long start, long end, byte state) {
+        Map.Entry<Long, Run> entry = this.runs.floorEntry(start);
+        // Neighbouring runs never have the same state, so a single run covers the range
+        return entry != null && entry.getValue().state == state && entry.getValue().end >= end;
+    }
+
+    synchronized long getDownloadedBytes() {
+        return this.downloadedBytes;
+    }
+
+    synchronized boolean isCompleted() {
+        return this.downloadedBytes >= this.size;
+    }
+
+    synchronized int getNumberOfRuns() {
+        return this.runs.size();
+    }
+
+    /**
+     * @return the runs in the given state, in order
+     */
+    synchronized List<Range> getRuns(byte state) {
+        List<Range> ranges = new ArrayList<>();
+        for (Map.Entry<Long, Run> entry : this.runs.entrySet()) {
+            if (entry.getValue().state == state) {
+                ranges.add(new Range(entry.getKey(), entry.getValue().end));
+            }
+        }
+        return ranges;
+    }
+
+    long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Writes the downloaded runs. Runs in process of download are not stored, since they are missing on resume.
+     */
+    synchronized void writeTo(DataOutput out) throws IOException {
+        List<Range> downloaded = getRuns(DownloadableMetadata.CHUNK_WAS_DOWNLOADED_ALREADY);
+        out.writeLong(this.size);
+        out.writeInt(downloaded.size());
+        for (Range run : downloaded) {
+            out.writeLong(run.getStart());
+            out.writeLong(run.getEnd());
+        }
+    }
+
+    static RangeIndex readFrom(DataInput in) throws IOException {
+        long size = in.readLong();
+        int numOfRuns = in.readInt();
+        if (size < 0 || numOfRuns < 0) {
+            throw new IOException("Corrupted range index");
+        }
+        RangeIndex index = new RangeIndex(size);
+        for (int i = 0; i < numOfRuns; i++) {
+            long start = in.readLong();
+            long end = in.readLong();
+            if (start < 0 || end < start || end >= size) {
+                throw new IOException("Corrupted range index");
+            }
+            index.mark(start, end, DownloadableMetadata.CHUNK_WAS_DOWNLOADED_ALREADY);
+        }
+        return index;
+    }
+
+    private void update(long start, long end, byte fromState, byte toState) {
+        start = Math.max(start, 0);
+        end = Math.min(end, this.size - 1);
+        if (start > end) {
+            return;
+        }
+        split(start);
+        split(end + 1);
+        List<Long> starts = new ArrayList<>(this.runs.subMap(start, true, end, true).keySet());
+        for (Long runStart : starts) {
+            Run run = this.runs.get(runStart);
+            if (run.state != toState && (fromState < 0 || run.state == fromState)) {
+                removeRun(runStart);
+                putRun(runStart, run.end, toState);
+            }
+        }
+        coalesce(start, end + 1);
+    }
+
+    /**
+     * Makes sure a run starts exactly at the given position.
+     */
+    private void split(long position) {
+        if (position <= 0 || position >= this.size) {
+            return;
+        }
+        Map.Entry<Long, Run> entry = this.runs.floorEntry(position);
+        if (entry.getKey() == position) {
+            return;
+        }
+        Run run = removeRun(entry.getKey());
+        putRun(entry.getKey(), position - 1, run.state);
+        putRun(position, run.end, run.state);
+    }
+
+    /**
+     * Merges neighbouring runs of the same state between the run before from and the run starting at to.
+     */
+    private void coalesce(long from, long to) {
+        Long current = this.runs.floorKey(Math.max(from - 1, 0));
+        while (current != null && current <= to) {
+            Run run = this.runs.get(current);
+            Run next = this.runs.get(run.end + 1);
+            if (next != null && next.state == run.state) {
+                removeRun(run.end + 1);
+                removeRun(current);
+                putRun(current, next.end, run.state);
+            } else {
+                current = this.runs.higherKey(current);
+            }
+        }
+    }
+
+    private void putRun(long start, long end, byte state) {
+        this.runs.put(start, new Run(end, state));
+        if (state == DownloadableMetadata.CHUNK_WAS_NOT_DOWNLOADED) {
+            this.missing.put(start, end);
+        } else if (state == DownloadableMetadata.CHUNK_WAS_DOWNLOADED_ALREADY) {
+            this.downloadedBytes += end - start + 1;
+        }
+    }
+
+    private Run removeRun(long start) {
+        Run run = this.runs.remove(start);
+        if (run.state == DownloadableMetadata.CHUNK_WAS_NOT_DOWNLOADED) {
+            this.missing.remove(start);
+        } else if (run.state == DownloadableMetadata.CHUNK_WAS_DOWNLOADED_ALREADY) {
+            this.downloadedBytes -= run.end - start + 1;
+        }
+        return run;
+    }
+
+    private static class Run {
+        private final long end;
+        private final byte state;
+
+        Run(long end, byte state) {
+            this.end = end;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out ranges to the workers for as long as the download lasts.
+ *
+ * A worker that finished its range immediately gets the next missing range from the metadata. Once no range is
+ * missing, the worker steals the tail half of the in-flight range that is expected to finish last (the largest
+ * remaining range relative to the throughput of its getter), so all the connections stay busy until the end.
+ * Only ranges with at least 2 x MIN_SPLIT_SIZE bytes left, that are neither hedged nor pinned, are split.
+ *
+ * Once the ranges left are too short to split, the download is in its end-game: an idle worker hedges the
+ * in-flight range that is expected to finish last, by racing for its undelivered bytes on another connection
+ * (see RangeAssignment). Only ranges that were in flight for HEDGE_DELAY and are expected to need HEDGE_DELAY
+ * more are hedged, so the end-game costs extra requests only for ranges that are slow or stalled.
+ *
+ * Missing ranges are handed out in file order. When the file is streamed, the range the stream waits for is
+ * hedged first, rather than the range expected to finish last.
+ *
+ * The first range handed out is the one whose response the DownloadableMetadata already opened. Once a getter
+ * finds that the file changed on the server, or once the download is cancelled, nothing more is handed out and the
+ * connections in flight are closed, so the download stops.
+ *
+ * A range whose getter failed goes back to the missing ranges, for the next worker. The download has a failure
+ * budget of FAILED_RANGES_PER_CONNECTION ranges per connection that fail in a row, without a byte delivered in
+ * between; the getter of the range that exhausts it fails the download.
+ *
+ * The idle workers wait on a ReentrantLock rather than a monitor, since a virtual thread that waits on a monitor
+ * holds its carrier thread before Java 24.
+ */
+class RangeScheduler {
+    static final long MIN_SPLIT_SIZE = 256 * 1024;
+    static final long HEDGE_DELAY = TimeUnit.MILLISECONDS.toNanos(500);
+    static final int FAILED_RANGES_PER_CONNECTION = 3;
+    // How often the idle workers look for a range to hedge
+    private static final long HEDGE_CHECK_PERIOD = 100;
+
+    private final DownloadableMetadata metaData;
+    private final Set<RangeAssignment> inFlight = new HashSet<>();
+    private final LongAdder deliveredBytes = new LongAdder();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicInteger steals = new AtomicInteger();
+    private final AtomicInteger hedges = new AtomicInteger();
+    // Ranges that failed since the last delivered byte
+    private final AtomicInteger failedRangesInARow = new AtomicInteger();
+    private final int failureBudget;
+    private StreamingOutput stream;
+    private volatile boolean fileChanged;
+    private volatile boolean cancelled;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a range is released or finished, and when the download is cancelled
+    private final Condition released = this.lock.newCondition();
+
+    /**
+     * @param connections number of connections of the download, which scales its failure budget
+     */
+    RangeScheduler(DownloadableMetadata metaData, int connections) {
+        this.metaData = metaData;
+        this.failureBudget = FAILED_RANGES_PER_CONNECTION * connections;
+    }
+
+    /**
+     * Sets the stream whose position the end-game favors.
+     */
+    void setStream(StreamingOutput stream) {
+        this.lock.lock();
+        try {
+            this.stream = stream;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until there is a range to download.
+     *
+     * @return the next range, or null once nothing is missing and nothing is in flight
+     */
+    RangeAssignment next() throws InterruptedException {
+        this.lock.lock();
+        try {
+            HttpTransport.RangeResponse first = this.metaData.takeFirstResponse();
+            if (first != null) {
+                RangeAssignment assignment = new RangeAssignment(new Range(first.start, first.end), first.body, !first.partial);
+                this.inFlight.add(assignment);
+                return assignment;
+            }
+            while (true) {
+                if (this.cancelled) {
+                    return null;
+                }
+                Range range = this.metaData.getMissingRange();
+                if (range == null) {
+                    range = stealRange();
+                }
+                if (range != null) {
+                    RangeAssignment assignment = new RangeAssignment(range);
+                    this.inFlight.add(assignment);
+                    return assignment;
+                }
+                if (this.inFlight.isEmpty() && !this.metaData.isClaimedElsewhere()) {
+                    return null;
+                }
+                RangeAssignment hedge = hedgeRange();
+                if (hedge != null) {
+                    this.inFlight.add(hedge);
+                    return hedge;
+                }
+                // Wait for a range to be released or finished, for an in-flight range to become slow, or for a lease
+                // of another process to expire
+                this.released.await(HEDGE_CHECK_PERIOD, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a getter for every range it wrote, before publishing it to the FileWriter.
+     *
+     * @return false if the getter lost the race for its range, and must not publish it
+     */
+    boolean delivered(RangeAssignment assignment, long size) {
+        if (!assignment.delivered(size)) {
+            return false;
+        }
+        this.deliveredBytes.add(size);
+        this.failedRangesInARow.set(0);
+        return true;
+    }
+
+    long getDeliveredBytes() {
+        return this.deliveredBytes.sum();
+    }
+
+    int getFailures() {
+        return this.failures.get();
+    }
+
+    int getSteals() {
+        return this.steals.get();
+    }
+
+    int getHedges() {
+        return this.hedges.get();
+    }
+
+    /**
+     * Called by a getter that delivered its whole range.
+     */
+    void finished(RangeAssignment assignment) {
+        this.lock.lock();
+        try {
+            this.inFlight.remove(assignment);
+            this.released.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a getter whose read failed and that is about to retry its range.
+     */
+    void retrying(RangeAssignment assignment) {
+        this.failures.incrementAndGet();
+        assignment.rewind();
+    }
+
+    /**
+     * Called by a getter that failed, returns the undelivered part of its range to the metadata.
+     *
+     * @return false if the range exhausted the failure budget of the download, which must fail
+     */
+    boolean failed(RangeAssignment assignment) {
+        this.lock.lock();
+        try {
+            this.failures.incrementAndGet();
+            release(assignment);
+            return this.failedRangesInARow.incrementAndGet() < this.failureBudget;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a getter that stopped early without failing: its mirror was dropped, or it lost the race for its
+     * range. Returns the undelivered part of its range to the metadata, unless the rival took it over.
+     */
+    void abandoned(RangeAssignment assignment) {
+        this.lock.lock();
+        try {
+            release(assignment);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a getter whose server no longer has the file the download started with. Stops the download.
+     */
+    void fileChanged(RangeAssignment assignment) {
+        this.lock.lock();
+        try {
+            this.fileChanged = true;
+            release(assignment);
+            cancel();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the download stopped because the file changed on the server
+     */
+    boolean isFileChanged() {
+        return this.fileChanged;
+    }
+
+    /**
+     * Stops the download: nothing more is handed out, and the connections of the ranges in flight are closed, so
+     * their getters give the ranges back instead of retrying them.
+     */
+    void cancel() {
+        this.lock.lock();
+        try {
+            this.cancelled = true;
+            for (RangeAssignment assignment : this.inFlight) {
+                assignment.closeConnection();
+            }
+            this.released.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    private void release(RangeAssignment assignment) {
+        this.inFlight.remove(assignment);
+        InputStream body = assignment.takeOpenedBody();
+        if (body != null) {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // Given up either way
+            }
+        }
+        Range undelivered = assignment.forfeit() ? assignment.getUndelivered() : null;
+        if (undelivered != null) {
+            this.metaData.changeRangeToNotDownloaded(undelivered);
+        }
+        this.released.signalAll();
+    }
+
+    private RangeAssignment hedgeRange() {
+        RangeAssignment victim = null;
+        double victimSecondsLeft = 0;
+        for (RangeAssignment assignment : this.inFlight) {
+            if (assignment.isHedged() || assignment.isPinned() || assignment.getAge() < HEDGE_DELAY) {
+                continue;
+            }
+            double secondsLeft = assignment.getUndeliveredLength() / Math.max(assignment.getThroughput(), 1.0);
+            if (secondsLeft * 1e9 >= HEDGE_DELAY && (victim == null || isWorseTail(assignment, secondsLeft, victim, victimSecondsLeft))) {
+                victim = assignment;
+                victimSecondsLeft = secondsLeft;
+            }
+        }
+        RangeAssignment hedge = victim != null ? victim.hedge() : null;
+        if (hedge != null) {
+            this.hedges.incrementAndGet();
+        }
+        return hedge;
+    }
+
+    private boolean isWorseTail(RangeAssignment assignment, double secondsLeft, RangeAssignment victim, double victimSecondsLeft) {
+        if (this.stream != null) {
+            // The stream waits for the range nearest to its position
+            return assignment.getPosition() < victim.getPosition();
+        }
+        return secondsLeft > victimSecondsLeft;
+    }
+
+    private Range stealRange() {
+        RangeAssignment victim = null;
+        double victimSecondsLeft = 0;
+        for (RangeAssignment assignment : this.inFlight) {
+            // splitTail refuses hedged and pinned ranges, so pick a victim it can split
+            if (assignment.isHedged() || assignment.isPinned()) {
+                continue;
+            }
+            long remaining = assignment.getRemaining();
+            if (remaining < 2 * MIN_SPLIT_SIZE) {
+                continue;
+            }
+            double secondsLeft = remaining / Math.max(assignment.getThroughput(), 1.0);
+            if (victim == null || secondsLeft > victimSecondsLeft) {
+                victim = assignment;
+                victimSecondsLeft = secondsLeft;
+            }
+        }
+        Range stolen = victim != null ? victim.splitTail(MIN_SPLIT_SIZE) : null;
+        if (stolen != null) {
+            this.steals.incrementAndGet();
+        }
+        return stolen;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * One download connection: keeps taking ranges from the RangeScheduler and downloading them with an
+ * HTTPRangeGetter, until the scheduler has nothing left to hand out.
+ * Before every range the worker waits until the ConcurrencyController allows its index to run, and holds one of
+ * the ConnectionSlots while it downloads the range. Every range goes to the mirror the MirrorSet picks at that
+ * moment. The read size the worker learned carries over to its next range.
+ * A failed write, or a range that exhausted the failure budget of the download, ends the worker with the
+ * exception of its getter, which fails the TaskScope of the download; so does an interrupt.
+ */
+class RangeWorker implements TaskScope.Task {
+    private final int index;
+    private final MirrorSet mirrors;
+    private final String progressLabel;
+    private final RangeScheduler scheduler;
+    private final FileWriter fileWriter;
+    private final TokenBucket tokenBucket;
+    private final BufferPool bufferPool;
+    private final HttpTransport transport;
+    private final ConcurrencyController concurrency;
+    private final Long maxBytesPerConnection;
+    private final ConnectionSlots connectionSlots;
+    private final int priority;
+    private final ReadSize readSize;
+    private final long trackingGranularity;
+    private final DownloadMetrics metrics;
+
+    RangeWorker(int index, ConcurrencyController concurrency, MirrorSet mirrors, String progressLabel, RangeScheduler scheduler, FileWriter fileWriter, TokenBucket tokenBucket, Long maxBytesPerConnection, BufferPool bufferPool, HttpTransport transport, ConnectionSlots connectionSlots, int priority, ReadSize readSize, long trackingGranularity, DownloadMetrics metrics) {
+        this.index = index;
+        this.concurrency = concurrency;
+        this.mirrors = mirrors;
+        this.progressLabel = progressLabel;
+        this.scheduler = scheduler;
+        this.fileWriter = fileWriter;
+        this.tokenBucket = tokenBucket;
+        this.maxBytesPerConnection = maxBytesPerConnection;
+        this.bufferPool = bufferPool;
+        this.transport = transport;
+        this.connectionSlots = connectionSlots;
+        this.priority = priority;
+        this.readSize = readSize;
+        this.trackingGranularity = trackingGranularity;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void run() throws InterruptedException {
+        // The connection's own budget, nested in the budget of the download
+        TokenBucket connectionBucket = this.tokenBucket.child(this.maxBytesPerConnection);
+        try {
+            RangeAssignment assignment = nextAssignment();
+            while (assignment != null) {
+                try {
+                    this.connectionSlots.acquire(this.priority);
+                } catch (InterruptedException e) {
+                    this.scheduler.failed(assignment);
+                    throw e;
+                }
+                try {
+                    new HTTPRangeGetter(this.mirrors.acquire(), this.mirrors, this.progressLabel, assignment, this.fileWriter, connectionBucket, this.scheduler, this.bufferPool, this.transport, this.readSize, this.trackingGranularity, this.metrics, this.index).run();
+                } finally {
+                    this.connectionSlots.release();
+                }
+                assignment = nextAssignment();
+            }
+        } finally {
+            connectionBucket.close();
+        }
+    }
+
+    private RangeAssignment nextAssignment() throws InterruptedException {
+        this.concurrency.awaitSlot(this.index);
+        RangeAssignment assignment = this.scheduler.next();
+        if (assignment == null) {
+            // Nothing is left to download, release the workers that wait for a slot
+            this.concurrency.terminate();
+        }
+        return assignment;
+    }
+}
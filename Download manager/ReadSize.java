@@ -0,0 +1,45 @@
+/**
+ * Picks the size of the next read of one connection from the throughput the connection showed so far.
+ *
+ * Every read costs a buffer, a token bucket reservation and a file write, so reads should be as large as the
+ * connection allows: the read size aims at TARGET_READ_NANOS worth of data at the observed throughput, rounded
+ * down to a power of two between minSize and maxSize. A slow or rate-limited connection keeps small reads, so
+ * it does not wait for a large buffer to fill; a fast one grows up to MB-sized reads.
+ */
+class ReadSize {
+    static final int DEFAULT_MIN_SIZE = 16 * 1024;
+    static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+    static final long TARGET_READ_NANOS = 20_000_000L;
+    // Weight of the latest sample in the moving average of the throughput
+    private static final double SMOOTHING = 0.25;
+
+    private final int minSize;
+    private final int maxSize;
+    private double bytesPerNano;
+    private int current;
+
+    ReadSize(int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid read sizes: " + minSize + ", " + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.current = minSize;
+    }
+
+    int get() {
+        return this.current;
+    }
+
+    /**
+     * Adjusts the read size after a read of the given size that took the given time, waits included.
+     */
+    void update(int size, long nanos) {
+        double sample = size / (double) Math.max(nanos, 1);
+        this.bytesPerNano = this.bytesPerNano == 0 ? sample : this.bytesPerNano + SMOOTHING * (sample - this.bytesPerNano);
+        long target = (long) (this.bytesPerNano * TARGET_READ_NANOS);
+        target = Math.max(this.minSize, Math.min(this.maxSize, target));
+        // Powers of two keep the buffers of the pool reusable between connections
+        this.current = (int) Math.max(this.minSize, Long.highestOneBit(target));
+    }
+}
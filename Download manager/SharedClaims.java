@@ -0,0 +1,484 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * A claim table shared by the processes (possibly on several hosts, over a shared filesystem) that download one
+ * file together into the same output file.
+ *
+ * The file is cut into units of UNIT_SIZE bytes, and the table, stored next to the file as FILE.claims, has one
+ * record per unit: its owner, the expiry of the owner's lease, and its CRC32C once it is done. A participant
+ * claims free units, or units whose lease expired because their owner crashed, under a FileChannel lock of their
+ * records, and renews the leases of its units every third of the lease time until they are done. A unit is done
+ * once its owner committed all of it to the output file; its CRC32C is then read back from the file, so any
+ * participant can assemble the checksum of the whole file.
+ *
+ * The leases are compared with the wall clock, so the clocks of the hosts must be synchronized to well within the
+ * lease time. File locks do not exclude the threads of one process from each other, so the methods hold a
+ * ReentrantLock as well. It is not a monitor, so a virtual thread that waits for a file lock or reads a unit back
+ * does not hold its carrier thread.
+ */
+class SharedClaims {
+    static final int UNIT_SIZE = 4 * 1024 * 1024;
+    static final long DEFAULT_LEASE_TIME = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAGIC = 0x49444331; // "IDC1"
+    private static final int HEADER_SIZE = 1024;
+    private static final int RECORD_SIZE = 8 + 8 + 4;
+    private static final long FREE = 0;
+    private static final long DONE = -1;
+    // Records read at a time when looking for free units
+    private static final int SCAN_RECORDS = 4096;
+    // How often the whole table is scanned for expired leases, and for the units done by the others
+    private static final long RESCAN_PERIOD = TimeUnit.SECONDS.toMillis(1);
+
+    private final FileChannel table;
+    private final Path dataFile;
+    private final long fullSize;
+    private final long units;
+    private final long leaseTime;
+    private final long participant;
+    private final ScheduledExecutorService renewer;
+    // First unit -> last unit of the runs this participant leased and did not finish
+    private final TreeMap<Long, Long> leased = new TreeMap<>();
+    // The units before it were done or leased by others at the last look
+    private long cursor;
+    private long lastFullScan;
+    private long lastRefresh;
+    private long doneUnits;
+    private boolean complete;
+    private FileChannel data;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private SharedClaims(FileChannel table, Path dataFile, long fullSize, long leaseTime) {
+        this.table = table;
+        this.dataFile = dataFile;
+        this.fullSize = fullSize;
+        this.units = (fullSize + UNIT_SIZE - 1) / UNIT_SIZE;
+        this.leaseTime = leaseTime;
+        long participant;
+        do {
+            participant = new SecureRandom().nextLong();
+        } while (participant == FREE || participant == DONE);
+        this.participant = participant;
+        this.renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "claim-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.renewer.scheduleWithFixedDelay(this::renewQuietly, leaseTime / 3, leaseTime / 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the claim table of the file, or creates it for the first participant. The table stays once the file is
+     * done, so a participant that starts late finds the file complete rather than downloading it again. A table
+     * that no participant holds a live lease in is started over if it is of another version of the file, or if the
+     * file it describes is gone.
+     *
+     * @param info what the server told this participant about the file, which must match what it told the others
+     * @param leaseTime milliseconds a claim stays valid without being renewed
+     */
+    @SuppressWarnings("try")
+    static SharedClaims open(Path tableFile, Path dataFile, HttpTransport.FileInfo info, long leaseTime) throws IOException {
+        FileChannel table = FileChannel.open(tableFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            String validator = info.getValidator() != null ? info.getValidator() : "";
+            // The whole table, so no participant claims a unit while the table may be started over
+            try (FileLock fileLock = table.lock(0, Long.MAX_VALUE, false)) {
+                if (table.size() >= HEADER_SIZE) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                    readFully(table, header, 0);
+                    header.flip();
+                    if (header.getInt() != MAGIC) {
+                        throw new IOException("Not a claim table");
+                    }
+                    long size = header.getLong();
+                    int unitSize = header.getInt();
+                    byte[] validatorBytes = new byte[header.getShort()];
+                    header.get(validatorBytes);
+                    if (size < 0 || unitSize <= 0) {
+                        throw new IOException("Corrupted claim table");
+                    }
+                    boolean sameVersion = size == info.size && unitSize == UNIT_SIZE
+                            && validator.equals(new String(validatorBytes, StandardCharsets.UTF_8));
+                    if (sameVersion && Files.exists(dataFile)) {
+                        return new SharedClaims(table, dataFile, info.size, leaseTime);
+                    }
+                    if (hasLiveLeases(table, (size + unitSize - 1) / unitSize)) {
+                        if (!sameVersion) {
+                            throw new IOException("The claim table is of another version of the file, and still in use");
+                        }
+                        // The first participant did not create the file yet
+                        return new SharedClaims(table, dataFile, info.size, leaseTime);
+                    }
+                    table.truncate(0);
+                }
+                byte[] validatorBytes = validator.getBytes(StandardCharsets.UTF_8);
+                if (validatorBytes.length > HEADER_SIZE - 18) {
+                    throw new IOException("The validator of the file is too long");
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putLong(info.size).putInt(UNIT_SIZE).putShort((short) validatorBytes.length).put(validatorBytes);
+                header.clear();
+                writeFully(table, header, 0);
+                table.force(false);
+            }
+            return new SharedClaims(table, dataFile, info.size, leaseTime);
+        } catch (IOException | RuntimeException e) {
+            table.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if some unit of the table is leased by a participant whose lease did not expire
+     */
+    private static boolean hasLiveLeases(FileChannel table, long units) throws IOException {
+        long now = System.currentTimeMillis();
+        ByteBuffer records = ByteBuffer.allocate(SCAN_RECORDS * RECORD_SIZE);
+        for (long unit = 0; unit < units; unit += SCAN_RECORDS) {
+            int count = (int) Math.min(SCAN_RECORDS, units - unit);
+            records.clear().limit(count * RECORD_SIZE);
+            readFully(table, records, recordPosition(unit));
+            records.flip();
+            for (int i = 0; i < count; i++) {
+                long owner = records.getLong();
+                long leaseExpiry = records.getLong();
+                records.getInt();
+                if (owner != FREE && owner != DONE && leaseExpiry >= now) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Leases the first run of free units (or of units whose lease expired), at most maxLength bytes long but at
+     * least one unit.
+     *
+     * @return the bytes of the leased units, or null if no unit is free
+     */
+    @SuppressWarnings("try")
+    Range claim(long maxLength) throws IOException {
+        this.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            if (this.cursor >= this.units && now - this.lastFullScan >= RESCAN_PERIOD) {
+                // Leases expire, so the units passed over before may be free now
+                this.cursor = 0;
+            }
+            if (this.cursor == 0) {
+                this.lastFullScan = now;
+            }
+            long maxUnits = Math.max(1, maxLength / UNIT_SIZE);
+            ByteBuffer records = ByteBuffer.allocate(SCAN_RECORDS * RECORD_SIZE);
+            while (this.cursor < this.units) {
+                long first = findClaimable(records, now);
+                if (first < 0) {
+                    continue;
+                }
+                long last = Math.min(first + maxUnits - 1, this.units - 1);
+                try (FileLock fileLock = this.table.lock(recordPosition(first), (last - first + 1) * RECORD_SIZE, false)) {
+                    // Another participant may have claimed some of the units meanwhile, the run ends before the first
+                    ByteBuffer run = ByteBuffer.allocate((int) (last - first + 1) * RECORD_SIZE);
+                    readFully(this.table, run, recordPosition(first));
+                    run.flip();
+                    long end = first;
+                    while (end <= last && isClaimable(run.getLong(), run.getLong(), now)) {
+                        run.getInt();
+                        end++;
+                    }
+                    if (end == first) {
+                        this.cursor = first + 1;
+                        continue;
+                    }
+                    ByteBuffer claimed = ByteBuffer.allocate((int) (end - first) * RECORD_SIZE);
+                    while (claimed.hasRemaining()) {
+                        claimed.putLong(this.participant).putLong(now + this.leaseTime).putInt(0);
+                    }
+                    claimed.flip();
+                    writeFully(this.table, claimed, recordPosition(first));
+                    this.leased.put(first, end - 1);
+                    this.cursor = end;
+                    return new Range(first * UNIT_SIZE, Math.min(end * UNIT_SIZE, this.fullSize) - 1);
+                }
+            }
+            return null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the records from the cursor on, without a lock, and moves the cursor to the first unit that looks
+     * claimable, or past the records read.
+     *
+     * @return the unit, or -1 if none of the records read looks claimable
+     */
+    private long findClaimable(ByteBuffer records, long now) throws IOException {
+        int count = (int) Math.min(SCAN_RECORDS, this.units - this.cursor);
+        records.clear().limit(count * RECORD_SIZE);
+        readFully(this.table, records, recordPosition(this.cursor));
+        records.flip();
+        for (int i = 0; i < count; i++) {
+            if (isClaimable(records.getLong(), records.getLong(), now)) {
+                this.cursor += i;
+                return this.cursor;
+            }
+            records.getInt();
+        }
+        this.cursor += count;
+        return -1;
+    }
+
+    private static boolean isClaimable(long owner, long leaseExpiry, long now) {
+        return owner == FREE || (owner != DONE && leaseExpiry < now);
+    }
+
+    /**
+     * Marks the unit as done, once all of its bytes were committed to the output file by this participant.
+     */
+    @SuppressWarnings("try")
+    void done(long unit) throws IOException {
+        this.lock.lock();
+        try {
+            long start = unit * UNIT_SIZE;
+            int length = (int) (Math.min(start + UNIT_SIZE, this.fullSize) - start);
+            if (this.data == null) {
+                this.data = FileChannel.open(this.dataFile, StandardOpenOption.READ);
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            readFully(this.data, bytes, start);
+            bytes.flip();
+            CRC32C checksum = new CRC32C();
+            checksum.update(bytes);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putLong(DONE).putLong(0).putInt((int) checksum.getValue());
+            record.flip();
+            try (FileLock fileLock = this.table.lock(recordPosition(unit), RECORD_SIZE, false)) {
+                writeFully(this.table, record, recordPosition(unit));
+            }
+            forget(unit);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the records of the done units to the disk.
+     */
+    void flush() throws IOException {
+        this.table.force(false);
+    }
+
+    /**
+     * @return true if every unit is done, by any participant; looks at the table at most once per RESCAN_PERIOD
+     */
+    boolean isComplete() throws IOException {
+        this.lock.lock();
+        try {
+            refresh();
+            return this.complete;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the bytes of the units done by all the participants, at the last look
+     */
+    long getDoneBytes() throws IOException {
+        this.lock.lock();
+        try {
+            refresh();
+            return Math.min(this.doneUnits * UNIT_SIZE, this.fullSize);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the CRC32C of the whole file, or null if some unit is not done
+     */
+    Integer getFileChecksum() throws IOException {
+        this.lock.lock();
+        try {
+            int checksum = 0;
+            ByteBuffer records = ByteBuffer.allocate(SCAN_RECORDS * RECORD_SIZE);
+            for (long unit = 0; unit < this.units; unit += SCAN_RECORDS) {
+                int count = (int) Math.min(SCAN_RECORDS, this.units - unit);
+                records.clear().limit(count * RECORD_SIZE);
+                readFully(this.table, records, recordPosition(unit));
+                records.flip();
+                for (int i = 0; i < count; i++) {
+                    long owner = records.getLong();
+                    records.getLong();
+                    int unitChecksum = records.getInt();
+                    if (owner != DONE) {
+                        return null;
+                    }
+                    long start = (unit + i) * UNIT_SIZE;
+                    checksum = Crc32c.combine(checksum, unitChecksum, Math.min(start + UNIT_SIZE, this.fullSize) - start);
+                }
+            }
+            return checksum;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void refresh() throws IOException {
+        long now = System.currentTimeMillis();
+        if (this.complete || now - this.lastRefresh < RESCAN_PERIOD) {
+            return;
+        }
+        this.lastRefresh = now;
+        long done = 0;
+        ByteBuffer records = ByteBuffer.allocate(SCAN_RECORDS * RECORD_SIZE);
+        for (long unit = 0; unit < this.units; unit += SCAN_RECORDS) {
+            int count = (int) Math.min(SCAN_RECORDS, this.units - unit);
+            records.clear().limit(count * RECORD_SIZE);
+            readFully(this.table, records, recordPosition(unit));
+            records.flip();
+            for (int i = 0; i < count; i++) {
+                if (records.getLong() == DONE) {
+                    done++;
+                }
+                records.getLong();
+                records.getInt();
+            }
+        }
+        this.doneUnits = done;
+        this.complete = done == this.units;
+    }
+
+    /**
+     * Extends the leases of the units this participant did not finish yet. A unit that another participant took
+     * over meanwhile (because this one did not renew it in time) is left to it.
+     */
+    @SuppressWarnings("try")
+    private void renew() throws IOException {
+        this.lock.lock();
+        try {
+            long expiry = System.currentTimeMillis() + this.leaseTime;
+            for (Map.Entry<Long, Long> run : new TreeMap<>(this.leased).entrySet()) {
+                long first = run.getKey();
+                int count = (int) (run.getValue() - first + 1);
+                try (FileLock fileLock = this.table.lock(recordPosition(first), (long) count * RECORD_SIZE, false)) {
+                    ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE);
+                    readFully(this.table, records, recordPosition(first));
+                    for (int i = 0; i < count; i++) {
+                        if (records.getLong(i * RECORD_SIZE) == this.participant) {
+                            records.putLong(i * RECORD_SIZE + 8, expiry);
+                        } else {
+                            forget(first + i);
+                        }
+                    }
+                    records.flip();
+                    writeFully(this.table, records, recordPosition(first));
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void renewQuietly() {
+        try {
+            renew();
+        } catch (IOException e) {
+            System.err.println("Failed to renew the claims: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops renewing the leases, and frees the units this participant did not finish, so the others can take them
+     * over without waiting for the leases to expire.
+     */
+    @SuppressWarnings("try")
+    void close() {
+        this.lock.lock();
+        try {
+            this.renewer.shutdownNow();
+            try {
+                for (Map.Entry<Long, Long> run : this.leased.entrySet()) {
+                    long first = run.getKey();
+                    int count = (int) (run.getValue() - first + 1);
+                    try (FileLock fileLock = this.table.lock(recordPosition(first), (long) count * RECORD_SIZE, false)) {
+                        ByteBuffer records = ByteBuffer.allocate(count * RECORD_SIZE);
+                        readFully(this.table, records, recordPosition(first));
+                        for (int i = 0; i < count; i++) {
+                            if (records.getLong(i * RECORD_SIZE) == this.participant) {
+                                records.putLong(i * RECORD_SIZE, FREE);
+                            }
+                        }
+                        records.flip();
+                        writeFully(this.table, records, recordPosition(first));
+                    }
+                }
+                this.leased.clear();
+                this.table.close();
+                if (this.data != null) {
+                    this.data.close();
+                }
+            } catch (IOException e) {
+                // The leases expire on their own
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the unit from the runs this participant leased.
+     */
+    private void forget(long unit) {
+        Map.Entry<Long, Long> run = this.leased.floorEntry(unit);
+        if (run == null || run.getValue() < unit) {
+            return;
+        }
+        this.leased.remove(run.getKey());
+        if (run.getKey() < unit) {
+            this.leased.put(run.getKey(), unit - 1);
+        }
+        if (unit < run.getValue()) {
+            this.leased.put(unit + 1, run.getValue());
+        }
+    }
+
+    private static long recordPosition(long unit) {
+        return HEADER_SIZE + unit * RECORD_SIZE;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                // Records past the end of the table were never written, they are free
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands the bytes of a download, in order, to a consumer (e.g. the standard output) while the download runs.
+ *
+ * The FileWriter offers every chunk it writes. Chunks that fall within the window of the next bufferSize bytes
+ * after the stream's position are copied into a ring buffer of that size, and streamed from memory. Chunks beyond
+ * the window are only noted as written, and streamed by reading them back from the file once the stream gets to
+ * them; so are the ranges that were downloaded before a resume. The getters never wait for the consumer, and the
+ * RangeScheduler hands out ranges in file order, in ranges small enough to keep most of the data in the window.
+ *
+ * The stream runs on its own thread until the whole file was handed out, or until finish() is called and nothing
+ * more is available. It waits on a ReentrantLock rather than a monitor, so a virtual thread does not hold its
+ * carrier thread while it waits.
+ */
+class StreamingOutput implements Runnable {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024 * 1024;
+    private static final int DISK_READ_SIZE = 1024 * 1024;
+
+    private final WritableByteChannel consumer;
+    private final String filename;
+    private final long fullSize;
+    private final ByteBuffer ring;
+    private final Intervals buffered = new Intervals();
+    private final Intervals onDisk = new Intervals();
+    private volatile long position;
+    private boolean finished;
+    private boolean failed;
+    private long bytesFromDisk;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when bytes are buffered or on disk, and when the download ended
+    private final Condition available = this.lock.newCondition();
+
+    /**
+     * @param bufferSize size of the ring buffer, the window of bytes ahead of the stream's position kept in memory
+     */
+    StreamingOutput(WritableByteChannel consumer, DownloadableMetadata metaData, int bufferSize) {
+        this.consumer = consumer;
+        this.filename = metaData.getFilename();
+        this.fullSize = metaData.getFullSize();
+        this.ring = ByteBuffer.allocate((int) Math.max(1, Math.min(bufferSize, this.fullSize)));
+        for (Range range : metaData.getDownladableParts().getRuns(DownloadableMetadata.CHUNK_WAS_DOWNLOADED_ALREADY)) {
+            this.onDisk.add(range.getStart(), range.getEnd() + 1);
+        }
+    }
+
+    /**
+     * @return the next byte to hand to the consumer
+     */
+    long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Called by the FileWriter before writing a chunk. Copies the part of the chunk that falls within the window.
+     *
+     * @return true if no byte of the chunk has to be read back from the file, false if the FileWriter must call
+     *         written() once the chunk is on disk
+     */
+    boolean offer(ByteBuffer data, long offset) {
+        this.lock.lock();
+        try {
+            long chunkEnd = offset + data.remaining();
+            long start = Math.max(offset, this.position);
+            long end = Math.min(chunkEnd, this.position + this.ring.capacity());
+            if (start < end) {
+                ByteBuffer source = data.duplicate();
+                source.position(data.position() + (int) (start - offset));
+                source.limit(source.position() + (int) (end - start));
+                int index = (int) (start % this.ring.capacity());
+                int firstPart = (int) Math.min(end - start, this.ring.capacity() - index);
+                ByteBuffer target = this.ring.duplicate();
+                target.position(index);
+                source.limit(source.position() + firstPart);
+                target.put(source);
+                source.limit(source.position() + (int) (end - start) - firstPart);
+                target.position(0);
+                target.put(source);
+                this.buffered.add(start, end);
+                this.available.signalAll();
+            }
+            return end == chunkEnd || start >= chunkEnd;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Called by the FileWriter once a chunk that was not buffered is on disk.
+     */
+    void written(long offset, long size) {
+        this.lock.lock();
+        try {
+            this.onDisk.add(offset, offset + size);
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Called once the download ended: the stream hands out what is available and stops.
+     */
+    void finish() {
+        this.lock.lock();
+        try {
+            this.finished = true;
+            this.available.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the whole file was handed to the consumer
+     */
+    boolean isComplete() {
+        return this.position == this.fullSize;
+    }
+
+    boolean isFailed() {
+        this.lock.lock();
+        try {
+            return this.failed;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return a one line summary of the streamed bytes
+     */
+    String getReport() {
+        this.lock.lock();
+        try {
+            return String.format("Streamed %d bytes, %d of them read back from the file", this.position, this.bytesFromDisk);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        FileChannel file = null;
+        try {
+            while (true) {
+                long start;
+                long end;
+                boolean fromBuffer;
+                this.lock.lock();
+                try {
+                    while (true) {
+                        start = this.position;
+                        if (start == this.fullSize) {
+                            return;
+                        }
+                        end = this.buffered.coveredFrom(start);
+                        fromBuffer = end > start;
+                        if (!fromBuffer) {
+                            end = this.onDisk.coveredFrom(start);
+                        }
+                        if (end > start || this.finished) {
+                            break;
+                        }
+                        this.available.await();
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+                if (end == start) {
+                    // The download ended before the file was complete
+                    return;
+                }
+                if (fromBuffer) {
+                    end = Math.min(end, start + this.ring.capacity() - start % this.ring.capacity());
+                    ByteBuffer data = this.ring.duplicate();
+                    data.position((int) (start % this.ring.capacity()));
+                    data.limit(data.position() + (int) (end - start));
+                    writeFully(data);
+                } else {
+                    if (file == null) {
+                        file = FileChannel.open(Paths.get(this.filename), StandardOpenOption.READ);
+                    }
+                    end = Math.min(end, start + DISK_READ_SIZE);
+                    ByteBuffer data = ByteBuffer.allocate((int) (end - start));
+                    while (data.hasRemaining()) {
+                        if (file.read(data, start + data.position()) < 0) {
+                            throw new IOException("The file is shorter than its size");
+                        }
+                    }
+                    data.flip();
+                    writeFully(data);
+                }
+                this.lock.lock();
+                try {
+                    this.position = end;
+                    if (!fromBuffer) {
+                        this.bytesFromDisk += end - start;
+                    }
+                    this.buffered.removeBefore(end);
+                    this.onDisk.removeBefore(end);
+                } finally {
+                    this.lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to stream the file: " + e.getMessage());
+            setFailed();
+        } catch (InterruptedException e) {
+            setFailed();
+        } finally {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+                this.consumer.close();
+            } catch (IOException e) {
+                // Nothing more goes to the consumer either way
+            }
+        }
+    }
+
+    private void setFailed() {
+        this.lock.lock();
+        try {
+            this.failed = true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            this.consumer.write(data);
+        }
+    }
+
+    /**
+     * Disjoint intervals [start, end) of the file, merged when they touch.
+     */
+    private static class Intervals {
+        // Start -> end (exclusive)
+        private final TreeMap<Long, Long> intervals = new TreeMap<>();
+
+        void add(long start, long end) {
+            Map.Entry<Long, Long> before = this.intervals.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+                this.intervals.remove(before.getKey());
+            }
+            Map.Entry<Long, Long> next = this.intervals.ceilingEntry(start);
+            while (next != null && next.getKey() <= end) {
+                end = Math.max(end, next.getValue());
+                this.intervals.remove(next.getKey());
+                next = this.intervals.ceilingEntry(start);
+            }
+            this.intervals.put(start, end);
+        }
+
+        /**
+         * @return the end of the interval that covers position, or position if none does
+         */
+        long coveredFrom(long position) {
+            Map.Entry<Long, Long> entry = this.intervals.floorEntry(position);
+            return entry != null && entry.getValue() > position ? entry.getValue() : position;
+        }
+
+        void removeBefore(long position) {
+            Map.Entry<Long, Long> first = this.intervals.firstEntry();
+            while (first != null && first.getKey() < position) {
+                this.intervals.remove(first.getKey());
+                if (first.getValue() > position) {
+                    this.intervals.put(position, first.getValue());
+                    return;
+                }
+                first = this.intervals.firstEntry();
+            }
+        }
+    }
+}
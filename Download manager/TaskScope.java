@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The tasks of one download: the RangeWorkers, the FileWriter's committer, the ConcurrencyController and the
+ * StreamingOutput. The scope outlives all of its tasks: join() returns only once every forked task ended.
+ *
+ * The first task that fails cancels the scope, and join() returns its failure: e.g. a RangeWorker whose write
+ * failed, or whose range exhausted the failure budget of the download. Cancelling runs the cancel actions
+ * registered with onCancel(), which stop the tasks (e.g. the RangeScheduler hands out nothing more and closes the
+ * connections in flight). The tasks are never interrupted: an interrupt closes the FileChannel the task is
+ * blocked on, which is the download's output file or its journal.
+ *
+ * The tasks run on threads of the scope's ThreadFactory, which may make virtual threads (see threadFactory()), or
+ * on a given executor, such as the pool of committers shared by a batch.
+ */
+class TaskScope {
+    /**
+     * A task of the scope. An exception thrown by the task cancels the scope.
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private final ThreadFactory threadFactory;
+    private final List<Runnable> cancelActions = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a task ends
+    private final Condition ended = this.lock.newCondition();
+    private int running;
+    private boolean cancelled;
+    private Throwable failure;
+
+    TaskScope(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * @param virtual whether to make virtual threads, which need Java 21
+     * @param name prefix of the names of the threads
+     * @throws UnsupportedOperationException if virtual threads are not available in this JVM
+     */
+    static ThreadFactory threadFactory(boolean virtual, String name) {
+        if (!virtual) {
+            AtomicInteger created = new AtomicInteger();
+            return runnable -> new Thread(runnable, name + "-" + created.getAndIncrement());
+        }
+        // Through reflection, so the download manager still builds and runs on Java 17
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+    }
+
+    /**
+     * Registers an action that stops some of the tasks. It runs at most once, on the thread that cancels the scope,
+     * or right away if the scope was cancelled already.
+     */
+    void onCancel(Runnable action) {
+        this.lock.lock();
+        try {
+            if (!this.cancelled) {
+                this.cancelActions.add(action);
+                return;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        action.run();
+    }
+
+    /**
+     * Runs the task on a new thread of the scope.
+     */
+    void fork(Task task) {
+        Runnable wrapped = wrap(task);
+        try {
+            this.threadFactory.newThread(wrapped).start();
+        } catch (RuntimeException | Error e) {
+            ended(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the task on the given executor, as a task of the scope.
+     */
+    void fork(Executor executor, Task task) {
+        Runnable wrapped = wrap(task);
+        try {
+            executor.execute(wrapped);
+        } catch (RuntimeException | Error e) {
+            ended(e);
+            throw e;
+        }
+    }
+
+    private Runnable wrap(Task task) {
+        this.lock.lock();
+        try {
+            this.running++;
+        } finally {
+            this.lock.unlock();
+        }
+        return () -> {
+            Throwable failure = null;
+            try {
+                task.run();
+            } catch (Throwable e) {
+                failure = e;
+            }
+            ended(failure);
+        };
+    }
+
+    private void ended(Throwable failure) {
+        if (failure != null) {
+            cancel(failure);
+        }
+        this.lock.lock();
+        try {
+            this.running--;
+            this.ended.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the tasks of the scope. Only the first cause is kept.
+     *
+     * @param cause the failure that join() returns, or null to cancel without failing
+     */
+    void cancel(Throwable cause) {
+        List<Runnable> actions;
+        this.lock.lock();
+        try {
+            if (this.failure == null) {
+                this.failure = cause;
+            }
+            if (this.cancelled) {
+                return;
+            }
+            this.cancelled = true;
+            actions = new ArrayList<>(this.cancelActions);
+            this.cancelActions.clear();
+        } finally {
+            this.lock.unlock();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    boolean isCancelled() {
+        this.lock.lock();
+        try {
+            return this.cancelled;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every task of the scope ended. An interrupt of the waiting thread cancels the scope, which is
+     * still waited for; the interrupt status is set again on return.
+     *
+     * @return the failure that cancelled the scope, or null if no task failed
+     */
+    Throwable join() {
+        boolean interrupted = false;
+        this.lock.lock();
+        try {
+            while (this.running > 0) {
+                try {
+                    this.ended.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    // The cancel actions run without the lock, as they do on the other threads
+                    this.lock.unlock();
+                    try {
+                        cancel(e);
+                    } finally {
+                        this.lock.lock();
+                    }
+                }
+            }
+            return this.failure;
+        } finally {
+            this.lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Tests of whole downloads against an in-process RangeHttpServer. The project has no test framework, so like
+ * Benchmark this is a program of its own:
+ *
+ * - largefile: resumes the download of a 5 GB synthetic file of which only the ranges around 0, 2 GB, 4 GB and the
+ *   end are missing, with each output mode. The output file stays sparse; the downloaded bytes, the length of the
+ *   file and the CRC32C assembled from the checksums of the ranges are checked
+ * - transport: sends range requests through one HttpTransport, one after the other and then from several threads,
+ *   and checks the bytes, and that the server saw only as many connections as requests were in flight at once.
+ *   The server speaks HTTP/1.1 only, so the HTTP/2 multiplexing is not covered
+ * - failures: stops the server in the middle of a download, and checks that the download fails once its connections
+ *   used up their failure budget, rather than retrying forever, and keeps its metadata for the next run
+ * - shared: claims, finishes and frees units of a claim table, then starts several IdcDm processes with idc.shared
+ *   on one file, then one more that must find the file complete, and kills a process in the middle of a shared
+ *   download so that another one has to take its units over once their leases expired. The files must come out
+ *   whole
+ *
+ * The tests create their files in the current directory, and the processes of the shared test in a temporary one,
+ * and delete them. The first failed check ends the run with an AssertionError.
+ *
+ * Run with "java Tests [all|largefile|transport|failures|shared]".
+ */
+class Tests {
+    private static final long LARGE_FILE_SIZE = (5L << 30) + 12345;
+    private static final long WINDOW_SIZE = 4 * 1024 * 1024;
+    private static final long TRANSPORT_FILE_SIZE = 16 * 1024 * 1024;
+    private static final int TRANSPORT_RANGE_SIZE = 256 * 1024;
+    private static final int TRANSPORT_THREADS = 4;
+    private static final long FAILURES_FILE_SIZE = 64L * 1024 * 1024;
+    private static final long FAILURES_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+    private static final long SHARED_FILE_SIZE = 16L * SharedClaims.UNIT_SIZE + 12345;
+    private static final int PARTICIPANTS = 3;
+    private static final long LEASE_TIME = 1000;
+    private static final long PARTICIPANT_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * @return the CRC32C of length zero bytes, assembled without going through them
+     */
+    private static int zerosChecksum(long length) {
+        int checksum = 0;
+        int power = Crc32c.checksum(new byte[1], 0, 1);
+        for (long powerLength = 1; length != 0; length >>>= 1, powerLength <<= 1) {
+            if ((length & 1) != 0) {
+                checksum = Crc32c.combine(checksum, power, powerLength);
+            }
+            power = Crc32c.combine(power, power, powerLength);
+        }
+        return checksum;
+    }
+
+    private static void deleteDownload(String filename) {
+        for (String name : new String[] { filename, filename + ".metadata", filename + ".metadata.journal", filename + ".tmp" }) {
+            new File(name).delete();
+        }
+    }
+
+    private static void testLargeFile(RangeHttpServer server, HttpTransport transport) throws Exception {
+        String url = server.getSyntheticUrl(LARGE_FILE_SIZE);
+        String filename = url.substring(url.lastIndexOf('/') + 1);
+        // The missing windows, the rest of the file is left as a hole and recorded as downloaded
+        long[] windows = { 0, (1L << 31) - WINDOW_SIZE / 2, (1L << 32) - WINDOW_SIZE / 2, LARGE_FILE_SIZE - WINDOW_SIZE };
+        for (String outputMode : new String[] { "channel", "mmap" }) {
+            deleteDownload(filename);
+            int expectedChecksum = 0;
+            DownloadableMetadata metaData = new DownloadableMetadata(url, transport, false, DownloadTask.SMALL_FILE_SIZE);
+            long position = 0;
+            for (long window : windows) {
+                if (window > position) {
+                    int zeros = zerosChecksum(window - position);
+                    metaData.addRange(new Range(position, window - 1), zeros);
+                    expectedChecksum = Crc32c.combine(expectedChecksum, zeros, window - position);
+                }
+                byte[] data = new byte[(int) WINDOW_SIZE];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = RangeHttpServer.syntheticByte(window + i);
+                }
+                expectedChecksum = Crc32c.combine(expectedChecksum, Crc32c.checksum(data, 0, data.length), WINDOW_SIZE);
+                position = window + WINDOW_SIZE;
+            }
+            metaData.saveMetadataFile();
+            metaData.takeFirstResponse().body.close();
+
+            System.setProperty("idc.output", outputMode);
+            System.setProperty("idc.verify", "false");
+            System.setProperty("idc.crc32c", String.format("%08x", expectedChecksum));
+            DownloadOptions options;
+            try {
+                options = DownloadOptions.fromSystemProperties("4", null);
+            } finally {
+                System.clearProperty("idc.output");
+                System.clearProperty("idc.verify");
+                System.clearProperty("idc.crc32c");
+            }
+            ExecutorService writers = Executors.newSingleThreadExecutor();
+            DownloadTask task = new DownloadTask(url, 0, options, transport, options.newGlobalBucket(),
+                    new ConnectionSlots(options.newConcurrencyController().getCeiling()), writers, false, null);
+            try {
+                check(task.download(""), "The resumed download of " + LARGE_FILE_SIZE + " bytes failed (" + outputMode + ")");
+                check(!new File(filename + ".metadata").exists(), "The metadata was not deleted (" + outputMode + ")");
+                try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+                    check(file.length() == LARGE_FILE_SIZE, "The file is " + file.length() + " bytes long (" + outputMode + ")");
+                    byte[] data = new byte[(int) WINDOW_SIZE];
+                    for (long window : windows) {
+                        file.seek(window);
+                        file.readFully(data);
+                        for (int i = 0; i < data.length; i++) {
+                            check(data[i] == RangeHttpServer.syntheticByte(window + i), "Wrong byte at " + (window + i) + " (" + outputMode + ")");
+                        }
+                    }
+                    file.seek(WINDOW_SIZE);
+                    check(file.read() == 0, "The downloaded part of the file was written again (" + outputMode + ")");
+                }
+            } finally {
+                writers.shutdown();
+                deleteDownload(filename);
+            }
+        }
+        System.out.println("largefile: OK");
+    }
+
+    /**
+     * Requests the range of the synthetic file over the transport, and checks its bytes.
+     */
+    private static void checkRange(HttpTransport transport, String url, long start) throws Exception {
+        byte[] data;
+        try (InputStream body = transport.openRange(url, start, start + TRANSPORT_RANGE_SIZE - 1, null)) {
+            data = body.readAllBytes();
+        }
+        check(data.length == TRANSPORT_RANGE_SIZE, "Got " + data.length + " bytes of the range at " + start);
+        for (int i = 0; i < data.length; i++) {
+            check(data[i] == RangeHttpServer.syntheticByte(start + i), "Wrong byte at " + (start + i));
+        }
+    }
+
+    private static void testTransport(RangeHttpServer server) throws Exception {
+        String url = server.getSyntheticUrl(TRANSPORT_FILE_SIZE);
+        int ranges = (int) (TRANSPORT_FILE_SIZE / TRANSPORT_RANGE_SIZE);
+        // A transport of its own, so no connection of another test is reused
+        HttpTransport transport = new HttpTransport(false);
+        try {
+            int connections = server.getConnectionCount();
+            for (int i = 0; i < ranges; i++) {
+                checkRange(transport, url, (long) i * TRANSPORT_RANGE_SIZE);
+            }
+            int sequential = server.getConnectionCount() - connections;
+            check(sequential == 1, ranges + " requests one after the other used " + sequential + " connections");
+
+            connections = server.getConnectionCount();
+            ExecutorService threads = Executors.newFixedThreadPool(TRANSPORT_THREADS);
+            try {
+                List<Future<?>> requests = new ArrayList<>();
+                for (int i = 0; i < ranges; i++) {
+                    long start = (long) i * TRANSPORT_RANGE_SIZE;
+                    requests.add(threads.submit(() -> {
+                        checkRange(transport, url, start);
+                        return null;
+                    }));
+                }
+                for (Future<?> request : requests) {
+                    request.get();
+                }
+            } finally {
+                threads.shutdown();
+            }
+            // The connection of the sequential requests is reused as well
+            int concurrent = server.getConnectionCount() - connections;
+            check(concurrent < TRANSPORT_THREADS, ranges + " requests from " + TRANSPORT_THREADS + " threads used " + concurrent + " new connections");
+            String report = transport.getReport();
+            check(report.startsWith(2 * ranges + " requests "), "Wrong report: " + report);
+        } finally {
+            transport.close();
+        }
+        System.out.println("transport: OK");
+    }
+
+    private static void testFailures(HttpTransport transport) throws Exception {
+        // A server of its own, slow enough to be stopped in the middle of the download
+        RangeHttpServer server = new RangeHttpServer(0, null);
+        server.setBandwidth(8L * 1024 * 1024);
+        server.start();
+        String url = server.getSyntheticUrl(FAILURES_FILE_SIZE);
+        String filename = url.substring(url.lastIndexOf('/') + 1);
+        DownloadOptions options = DownloadOptions.fromSystemProperties("4", null);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            DownloadTask task = new DownloadTask(url, 0, options, transport, options.newGlobalBucket(),
+                    new ConnectionSlots(options.newConcurrencyController().getCeiling()), threads, false, null);
+            Future<Boolean> download = threads.submit(() -> task.download(""));
+            while (!new File(filename).exists() || new File(filename).length() == 0) {
+                check(!download.isDone(), "The download ended before the server was stopped");
+                Thread.sleep(10);
+            }
+            server.stop();
+            check(!download.get(FAILURES_TIMEOUT, TimeUnit.MILLISECONDS), "The download succeeded without its server");
+            check(new File(filename + ".metadata").exists() || new File(filename + ".metadata.journal").exists(),
+                    "The failed download did not keep its metadata");
+        } finally {
+            server.stop();
+            threads.shutdownNow();
+            deleteDownload(filename);
+        }
+        System.out.println("failures: OK");
+    }
+
+    /**
+     * Checks that the file holds the synthetic file of its length.
+     */
+    private static void checkSynthetic(Path file, long size) throws IOException {
+        check(Files.size(file) == size, file + " is " + Files.size(file) + " bytes long instead of " + size);
+        byte[] data = new byte[1024 * 1024];
+        try (InputStream input = Files.newInputStream(file)) {
+            for (long position = 0; position < size; ) {
+                int read = input.read(data);
+                for (int i = 0; i < read; i++) {
+                    check(data[i] == RangeHttpServer.syntheticByte(position + i), "Wrong byte at " + (position + i) + " of " + file);
+                }
+                position += read;
+            }
+        }
+    }
+
+    private static void testClaimTable(Path directory) throws IOException {
+        Path dataFile = directory.resolve("claimed");
+        Path tableFile = directory.resolve("claimed.claims");
+        long size = 3L * SharedClaims.UNIT_SIZE + 12345;
+        byte[] data = new byte[(int) size];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = RangeHttpServer.syntheticByte(i);
+        }
+        Files.write(dataFile, data);
+        HttpTransport.FileInfo info = new HttpTransport.FileInfo(size, "\"claimed\"", null);
+        // Only one participant is open at a time: the file locks of two tables of one process would overlap
+        SharedClaims first = SharedClaims.open(tableFile, dataFile, info, TimeUnit.MINUTES.toMillis(1));
+        Range range = first.claim(SharedClaims.UNIT_SIZE);
+        check(range.getStart() == 0 && range.getEnd() == SharedClaims.UNIT_SIZE - 1, "The first claim is not the first unit");
+        range = first.claim(2L * SharedClaims.UNIT_SIZE);
+        check(range.getStart() == SharedClaims.UNIT_SIZE && range.getEnd() == 3L * SharedClaims.UNIT_SIZE - 1, "The second claim is not the next two units");
+        first.done(0);
+        try {
+            SharedClaims.open(tableFile, dataFile, new HttpTransport.FileInfo(size + 1, "\"claimed\"", null), LEASE_TIME).close();
+            throw new AssertionError("A claim table in use was opened for another version of the file");
+        } catch (IOException e) {
+            // Expected
+        }
+        first.close();
+
+        SharedClaims second = SharedClaims.open(tableFile, dataFile, info, TimeUnit.MINUTES.toMillis(1));
+        try {
+            check(second.getDoneBytes() == SharedClaims.UNIT_SIZE, "The unit done by the first participant is not done");
+            // The units the first participant left are free again, without waiting for their leases
+            range = second.claim(Long.MAX_VALUE);
+            check(range.getStart() == SharedClaims.UNIT_SIZE && range.getEnd() == size - 1, "The units left are not claimed as one run");
+            check(second.claim(Long.MAX_VALUE) == null, "A unit was claimed twice");
+            check(second.getFileChecksum() == null, "The file has a CRC32C before all of its units are done");
+            for (long unit = 1; unit <= 3; unit++) {
+                second.done(unit);
+            }
+            CRC32C checksum = new CRC32C();
+            checksum.update(data);
+            check(second.getFileChecksum() == (int) checksum.getValue(), "The CRC32C of the file is wrong");
+        } finally {
+            second.close();
+        }
+
+        // A late participant finds the file complete
+        SharedClaims late = SharedClaims.open(tableFile, dataFile, info, TimeUnit.MINUTES.toMillis(1));
+        try {
+            check(late.claim(Long.MAX_VALUE) == null && late.getFileChecksum() != null, "The complete table was started over");
+        } finally {
+            late.close();
+        }
+        // No one uses the table any more, so it is started over for another version of the file
+        SharedClaims changed = SharedClaims.open(tableFile, dataFile, new HttpTransport.FileInfo(size + 1, "\"changed\"", null), TimeUnit.MINUTES.toMillis(1));
+        try {
+            range = changed.claim(SharedClaims.UNIT_SIZE);
+            check(range != null && range.getStart() == 0, "The table of the old version of the file was not started over");
+        } finally {
+            changed.close();
+        }
+    }
+
+    /**
+     * Starts a download of the URL in the directory, with idc.shared, as a process of its own.
+     */
+    private static Process startParticipant(Path directory, String url, String name) throws IOException {
+        return new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "-Didc.shared=true", "-Didc.sharedLease=" + LEASE_TIME,
+                "IdcDm", url, "2")
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(directory.resolve(name + ".log").toFile())
+                .start();
+    }
+
+    private static void awaitParticipant(Process process, Path directory, String name) throws InterruptedException {
+        if (!process.waitFor(PARTICIPANT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+            throw new AssertionError(name + " did not end, see " + directory.resolve(name + ".log"));
+        }
+        check(process.exitValue() == 0, name + " failed, see " + directory.resolve(name + ".log"));
+    }
+
+    private static void testShared(RangeHttpServer server) throws Exception {
+        Path directory = Files.createTempDirectory("idc-shared");
+        testClaimTable(directory);
+
+        // Slow enough that every participant takes part
+        server.setConnectionLimit(2L * 1024 * 1024);
+        String url = server.getSyntheticUrl(SHARED_FILE_SIZE);
+        String filename = url.substring(url.lastIndexOf('/') + 1);
+        List<Process> participants = new ArrayList<>();
+        try {
+            for (int i = 0; i < PARTICIPANTS; i++) {
+                participants.add(startParticipant(directory, url, "participant-" + i));
+            }
+            for (int i = 0; i < PARTICIPANTS; i++) {
+                awaitParticipant(participants.get(i), directory, "participant-" + i);
+            }
+            checkSynthetic(directory.resolve(filename), SHARED_FILE_SIZE);
+            check(Files.exists(directory.resolve(filename + ".claims")), "The claim table was deleted");
+
+            // A participant that starts late finds the file complete, and does not download it again
+            long modified = Files.getLastModifiedTime(directory.resolve(filename)).toMillis();
+            Process late = startParticipant(directory, url, "late");
+            awaitParticipant(late, directory, "late");
+            check(Files.getLastModifiedTime(directory.resolve(filename)).toMillis() == modified, "The late participant wrote the file again");
+            checkSynthetic(directory.resolve(filename), SHARED_FILE_SIZE);
+            // Without the output file, the next participant starts the table over
+            Files.delete(directory.resolve(filename));
+
+            // A participant that crashes leaves its units leased; the next one takes them over once the leases expired
+            Process crashed = startParticipant(directory, url, "crashed");
+            long deadline = System.currentTimeMillis() + PARTICIPANT_TIMEOUT;
+            while (!Files.exists(directory.resolve(filename)) || Files.size(directory.resolve(filename)) == 0) {
+                check(crashed.isAlive() && System.currentTimeMillis() < deadline, "The crashed participant did not start downloading");
+                Thread.sleep(10);
+            }
+            Thread.sleep(LEASE_TIME);
+            crashed.destroyForcibly().waitFor();
+            check(crashed.exitValue() != 0, "The crashed participant finished");
+            server.setConnectionLimit(null);
+            Process survivor = startParticipant(directory, url, "survivor");
+            awaitParticipant(survivor, directory, "survivor");
+            checkSynthetic(directory.resolve(filename), SHARED_FILE_SIZE);
+        } finally {
+            server.setConnectionLimit(null);
+            for (Process participant : participants) {
+                participant.destroyForcibly();
+            }
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+        System.out.println("shared: OK");
+    }
+
+    public static void main(String[] args) throws Exception {
+        String which = args.length > 0 ? args[0] : "all";
+        RangeHttpServer server = new RangeHttpServer(0, null);
+        server.start();
+        HttpTransport transport = new HttpTransport(false);
+        try {
+            if (which.equals("all") || which.equals("largefile")) {
+                testLargeFile(server, transport);
+            }
+            if (which.equals("all") || which.equals("transport")) {
+                testTransport(server);
+            }
+            if (which.equals("all") || which.equals("failures")) {
+                testFailures(transport);
+            }
+            if (which.equals("all") || which.equals("shared")) {
+                testShared(server);
+            }
+        } finally {
+            transport.close();
+            server.stop();
+        }
+    }
+}
@@ -1,43 +1,129 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A Token Bucket (https://en.wikipedia.org/wiki/Token_bucket)
  *
- * This thread-safe bucket should support the following methods:
+ * This thread-safe bucket supports the following methods:
  *
  * - take(n): remove n tokens from the bucket (blocks until n tokens are available and taken)
- * - set(n): set the bucket to contain n tokens (to allow "hard" rate limiting)
- * - add(n): add n tokens to the bucket (to allow "soft" rate limiting)
+ * - set(n): set the bucket to contain n tokens
+ * - add(n): add n tokens to the bucket
  * - terminate(): mark the bucket as terminated (used to communicate between threads)
  * - terminated(): return true if the bucket is terminated, false otherwise
  *
+ * The bucket is refilled lazily and continuously, instead of by a thread once a second. Its whole state is the
+ * time at which it is (or will be) empty, so take() is a single CAS: a taker that finds too few tokens reserves
+ * its tokens anyway and parks until the refill pays them back.
+ *
+ * Unused tokens accumulate up to the burst size. A "soft" bucket uses the configured burst size (like adding
+ * maxBytesPerSecond tokens every second), a "hard" bucket never holds more than one second's worth of tokens
+ * (like resetting the bucket to maxBytesPerSecond tokens every second).
+ *
+ * Buckets form a hierarchy (global -> download -> connection): take() reserves the tokens on the bucket and on
+ * all its ancestors. A limited parent shares its rate among its children, work-conserving: every child may use
+ * its fair share, plus whatever the other children left unused in the last REBALANCE_PERIOD, up to its own limit.
  */
 class TokenBucket {
-	
-	private AtomicLong tokens;
-	private boolean isTerminated;
-	private Lock lock = new ReentrantLock();
-	private Condition conditionVariable; 
-	
+	enum Mode { SOFT, HARD }
+
+	static final long REBALANCE_PERIOD = 100_000_000L; // nanoseconds
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+	private final TokenBucket parent;
+	private final List<TokenBucket> children = new CopyOnWriteArrayList<>();
+	// Own limit in tokens per second, or Double.POSITIVE_INFINITY
+	private final double maxBytesPerSecond;
+	private final Long burst;
+	private final Mode mode;
+	// Nanoseconds per token at the current rate, 0 when the bucket does not limit
+	private volatile double nanosPerToken;
+	// System.nanoTime() at which the bucket is empty; tokens = (now - emptyAt) / nanosPerToken, up to the burst
+	private final AtomicLong emptyAt = new AtomicLong(Long.MIN_VALUE / 2);
+	private final LongAdder takenSinceRebalance = new LongAdder();
+	private final AtomicLong lastRebalance = new AtomicLong(System.nanoTime());
+	private volatile boolean isTerminated;
+
+    /**
+     * A bucket that never runs out of tokens.
+     */
     TokenBucket() {
-    	this.tokens = new AtomicLong();
-    	this.conditionVariable = lock.newCondition();
-    	this.isTerminated = false;
+    	this(null, null, null, Mode.SOFT);
+    }
+
+    /**
+     * @param maxBytesPerSecond refill rate in tokens per second
+     * @param burst maximal number of tokens that accumulate while the bucket is not used
+     * @param mode SOFT to use the burst as is, HARD to cap it at one second's worth of tokens
+     */
+    TokenBucket(long maxBytesPerSecond, long burst, Mode mode) {
+    	this(null, maxBytesPerSecond, burst, mode);
+    }
+
+    private TokenBucket(TokenBucket parent, Long maxBytesPerSecond, Long burst, Mode mode) {
+    	if (maxBytesPerSecond != null && maxBytesPerSecond <= 0) {
+    		throw new IllegalArgumentException("The download limit must be positive");
+    	}
+    	this.parent = parent;
+    	this.maxBytesPerSecond = maxBytesPerSecond != null ? maxBytesPerSecond : Double.POSITIVE_INFINITY;
+    	this.burst = burst;
+    	this.mode = mode;
+    	setRate(this.maxBytesPerSecond);
+    }
+
+    /**
+     * Creates a bucket for the given limit, or an unlimited one if maxBytesPerSecond is null.
+     */
+    static TokenBucket forLimit(Long maxBytesPerSecond, Long burst, Mode mode) {
+    	return new TokenBucket(null, maxBytesPerSecond, burst, mode);
+    }
+
+    /**
+     * Creates a bucket nested in this one, which may be limited further by maxBytesPerSecond (null for no own limit).
+     */
+    TokenBucket child(Long maxBytesPerSecond, Long burst, Mode mode) {
+    	TokenBucket child = new TokenBucket(this, maxBytesPerSecond, burst, mode);
+    	this.children.add(child);
+    	rebalance(System.nanoTime());
+    	return child;
+    }
+
+    /**
+     * Creates a bucket nested in this one with the same mode and a burst of one second's worth of tokens.
+     */
+    TokenBucket child(Long maxBytesPerSecond) {
+    	return child(maxBytesPerSecond, null, this.mode);
+    }
+
+    /**
+     * Detaches the bucket from its parent, returning its share to its siblings.
+     */
+    void close() {
+    	if (this.parent != null) {
+    		this.parent.children.remove(this);
+    		this.parent.rebalance(System.nanoTime());
+    	}
     }
 
     void take(long tokens) throws InterruptedException {
-    	lock.lock();
-    	while(this.tokens.get() - tokens < 0) {
-    		this.conditionVariable.await();
+    	long dueTime = Long.MIN_VALUE;
+    	for (TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+    		dueTime = Math.max(dueTime, bucket.reserve(tokens));
+    	}
+    	long waitNanos = dueTime - System.nanoTime();
+    	while (waitNanos > 0 && !this.isTerminated) {
+    		LockSupport.parkNanos(this, waitNanos);
+    		if (Thread.interrupted()) {
+    			throw new InterruptedException();
+    		}
+    		waitNanos = dueTime - System.nanoTime();
     	}
-    	this.tokens.addAndGet(-tokens);
-    	lock.unlock();
     }
 
-    synchronized void terminate() {
+    void terminate() {
         this.isTerminated = true;
     }
 
@@ -45,14 +131,92 @@ class TokenBucket {
         return this.isTerminated;
     }
 
-    synchronized void set(long tokens) {
-    	this.tokens.set(tokens);
+    void set(long tokens) {
+    	this.emptyAt.set(System.nanoTime() - toNanos(tokens, this.nanosPerToken));
     }
-    
+
     void add(long tokens) {
-    	this.tokens.addAndGet(tokens);
-    	lock.lock();
-    	this.conditionVariable.signalAll();
-    	lock.unlock();
+    	this.emptyAt.addAndGet(-toNanos(tokens, this.nanosPerToken));
+    }
+
+    /**
+     * @return the current rate in tokens per second, which is lower than the own limit while the parent is shared
+     */
+    double getRate() {
+    	double current = this.nanosPerToken;
+    	return current == 0 ? Double.POSITIVE_INFINITY : NANOS_PER_SECOND / current;
+    }
+
+    /**
+     * Takes the tokens from this bucket alone.
+     *
+     * @return the System.nanoTime() at which the tokens are paid back
+     */
+    private long reserve(long tokens) {
+    	long now = System.nanoTime();
+    	this.takenSinceRebalance.add(tokens);
+    	if (now - this.lastRebalance.get() >= REBALANCE_PERIOD) {
+    		rebalance(now);
+    	}
+    	double currentNanosPerToken = this.nanosPerToken;
+    	if (currentNanosPerToken == 0) {
+    		return now;
+    	}
+    	long cost = toNanos(tokens, currentNanosPerToken);
+    	long burstNanos = toNanos(getBurst(currentNanosPerToken), currentNanosPerToken);
+    	while (true) {
+    		long current = this.emptyAt.get();
+    		// A bucket that was idle for a long time holds at most burst tokens
+    		long dueTime = Math.max(current, now - burstNanos) + cost;
+    		if (this.emptyAt.compareAndSet(current, dueTime)) {
+    			return dueTime;
+    		}
+    		now = System.nanoTime();
+    	}
+    }
+
+    private long getBurst(double currentNanosPerToken) {
+    	long secondWorth = (long) Math.max(NANOS_PER_SECOND / currentNanosPerToken, 1);
+    	if (this.burst == null) {
+    		return secondWorth;
+    	}
+    	return this.mode == Mode.HARD ? Math.min(this.burst, secondWorth) : this.burst;
+    }
+
+    /**
+     * Gives every child its fair share of the rate of this bucket, plus what its siblings left unused.
+     */
+    private void rebalance(long now) {
+    	long last = this.lastRebalance.get();
+    	if (!this.lastRebalance.compareAndSet(last, now)) {
+    		return;
+    	}
+    	// A snapshot, since children may be added or closed meanwhile
+    	TokenBucket[] children = this.children.toArray(new TokenBucket[0]);
+    	if (children.length == 0) {
+    		return;
+    	}
+    	double rate = getRate();
+    	double seconds = Math.max(now - last, 1) / (double) NANOS_PER_SECOND;
+    	double[] used = new double[children.length];
+    	double totalUsed = 0;
+    	for (int i = 0; i < used.length; i++) {
+    		used[i] = children[i].takenSinceRebalance.sumThenReset() / seconds;
+    		totalUsed += used[i];
+    	}
+    	for (int i = 0; i < used.length; i++) {
+    		TokenBucket child = children[i];
+    		double share = Math.max(rate / used.length, rate - (totalUsed - used[i]));
+    		child.setRate(Math.min(child.maxBytesPerSecond, share));
+    	}
+    }
+
+    private void setRate(double bytesPerSecond) {
+    	this.nanosPerToken = Double.isInfinite(bytesPerSecond) ? 0 : NANOS_PER_SECOND / bytesPerSecond;
+    }
+
+    private static long toNanos(long tokens, double nanosPerToken) {
+    	double nanos = Math.ceil(tokens * nanosPerToken);
+    	return nanos >= Long.MAX_VALUE / 4 ? Long.MAX_VALUE / 4 : (long) nanos;
     }
 }